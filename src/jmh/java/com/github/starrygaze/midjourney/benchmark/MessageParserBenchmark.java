@@ -0,0 +1,144 @@
+package com.github.starrygaze.midjourney.benchmark;
+
+import com.github.starrygaze.midjourney.entity.MessageData;
+import com.github.starrygaze.midjourney.enums.Action;
+import com.github.starrygaze.midjourney.util.ConvertUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+/**
+ * MessageParserBenchmark 对比midjourney消息内容的解析和敏感词检测：
+ * <ul>
+ *     <li>parser: ConvertUtils.parseContent 一次扫描识别消息类型</li>
+ *     <li>regex: 原来的做法，依次尝试imagine、变换放大、放大单张三个正则，每次调用都重新编译Pattern</li>
+ *     <li>regexPrecompiled: 同样的三个正则预先编译，用来区分编译和匹配各自的开销</li>
+ *     <li>bannedPerWord / bannedCombined: 原来每个敏感词各编译一次正则逐个匹配，和 BannedPromptHelper 合并成一个预编译正则的做法</li>
+ * </ul>
+ * 消息样本覆盖每秒多次的进度更新、最终结果和频道里的普通消息，每次调用处理全部样本。
+ * 运行: mvn -P jmh test-compile exec:exec -Djmh.args="MessageParserBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MessageParserBenchmark {
+	private static final String MJ_I_CONTENT_REGEX = "\\*\\*(.*?)\\*\\* - <@(\\d+)> \\((.*?)\\)";
+	private static final String MJ_UV_CONTENT_REGEX = "\\*\\*(.*?)\\*\\* - (.*?) by <@(\\d+)> \\((.*?)\\)";
+	private static final String MJ_U_CONTENT_REGEX = "\\*\\*(.*?)\\*\\* - Image #(\\d) <@(\\d+)>";
+	private static final Pattern I_PATTERN = Pattern.compile(MJ_I_CONTENT_REGEX);
+	private static final Pattern UV_PATTERN = Pattern.compile(MJ_UV_CONTENT_REGEX);
+	private static final Pattern U_PATTERN = Pattern.compile(MJ_U_CONTENT_REGEX);
+
+	private static final List<String> MESSAGES = List.of(
+			"**[4821937465012] a watercolor cat sitting on the window, soft light --ar 16:9 --v 5** - <@1012345678901234567> (Waiting to start)",
+			"**[4821937465012] a watercolor cat sitting on the window, soft light --ar 16:9 --v 5** - <@1012345678901234567> (31%) (fast)",
+			"**[4821937465012] a watercolor cat sitting on the window, soft light --ar 16:9 --v 5** - <@1012345678901234567> (93%) (fast)",
+			"**[4821937465012] a watercolor cat sitting on the window, soft light --ar 16:9 --v 5** - <@1012345678901234567> (fast)",
+			"**[4821937465012] a watercolor cat sitting on the window, soft light --ar 16:9 --v 5** - Variations by <@1012345678901234567> (62%) (relaxed)",
+			"**[4821937465012] a watercolor cat sitting on the window, soft light --ar 16:9 --v 5** - Upscaled by <@1012345678901234567> (fast)",
+			"**[4821937465012] a watercolor cat sitting on the window, soft light --ar 16:9 --v 5** - Image #2 <@1012345678901234567>",
+			"anyone knows how to get better hands? the last batch looked weird"
+	);
+
+	private List<String> bannedWords;
+	private Pattern bannedPattern;
+	private List<String> prompts;
+
+	@Setup
+	public void setup() {
+		this.bannedWords = IntStream.range(0, 200).mapToObj(i -> "bannedword" + i).toList();
+		this.bannedPattern = Pattern.compile("\\b(?:" + String.join("|", this.bannedWords) + ")\\b");
+		this.prompts = List.of(
+				"A watercolor cat sitting on the window, soft light, highly detailed --ar 16:9 --v 5",
+				"Portrait of an astronaut in a sunflower field, cinematic lighting, bannedword150 --q 2");
+	}
+
+	@Benchmark
+	public void parser(Blackhole blackhole) {
+		for (String message : MESSAGES) {
+			blackhole.consume(ConvertUtils.parseContent(message));
+		}
+	}
+
+	@Benchmark
+	public void regex(Blackhole blackhole) {
+		for (String message : MESSAGES) {
+			blackhole.consume(matchWithRegex(message, Pattern.compile(MJ_I_CONTENT_REGEX),
+					Pattern.compile(MJ_UV_CONTENT_REGEX), Pattern.compile(MJ_U_CONTENT_REGEX)));
+		}
+	}
+
+	@Benchmark
+	public void regexPrecompiled(Blackhole blackhole) {
+		for (String message : MESSAGES) {
+			blackhole.consume(matchWithRegex(message, I_PATTERN, UV_PATTERN, U_PATTERN));
+		}
+	}
+
+	@Benchmark
+	public void bannedPerWord(Blackhole blackhole) {
+		for (String prompt : this.prompts) {
+			String finalPromptEn = prompt.toLowerCase(Locale.ENGLISH);
+			blackhole.consume(this.bannedWords.stream()
+					.anyMatch(bannedWord -> Pattern.compile("\\b" + bannedWord + "\\b").matcher(finalPromptEn).find()));
+		}
+	}
+
+	@Benchmark
+	public void bannedCombined(Blackhole blackhole) {
+		for (String prompt : this.prompts) {
+			blackhole.consume(this.bannedPattern.matcher(prompt.toLowerCase(Locale.ENGLISH)).find());
+		}
+	}
+
+	/**
+	 * 原来的匹配顺序：先按imagine消息匹配，不是时再按变换、放大消息匹配，最后按放大单张匹配.
+	 */
+	private static MessageData matchWithRegex(String content, Pattern imaginePattern, Pattern uvPattern, Pattern uPattern) {
+		Matcher matcher = imaginePattern.matcher(content);
+		if (matcher.find()) {
+			MessageData data = new MessageData();
+			data.setAction(Action.IMAGINE);
+			data.setPrompt(matcher.group(1));
+			data.setStatus(matcher.group(3));
+			return data;
+		}
+		matcher = uvPattern.matcher(content);
+		if (matcher.find()) {
+			MessageData data = new MessageData();
+			data.setPrompt(matcher.group(1));
+			data.setAction(matcher.group(2).startsWith("Variation") ? Action.VARIATION : Action.UPSCALE);
+			data.setStatus(matcher.group(4));
+			return data;
+		}
+		matcher = uPattern.matcher(content);
+		if (matcher.find()) {
+			MessageData data = new MessageData();
+			data.setAction(Action.UPSCALE);
+			data.setPrompt(matcher.group(1));
+			data.setStatus("complete");
+			data.setIndex(Integer.parseInt(matcher.group(2)));
+			return data;
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,94 @@
+package com.github.starrygaze.midjourney.benchmark;
+
+import cn.hutool.core.io.resource.ResourceUtil;
+import com.github.starrygaze.midjourney.support.PayloadTemplate;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PayloadTemplateBenchmark 对比交互参数的两种生成方式：预编译模板(PayloadTemplate)直接渲染为UTF-8字节，
+ * 以及原来的做法：对json模板多次 String.replace，imagine再解析成 JSONObject 写入prompt后序列化，最后编码为请求体。
+ * 加上 -prof gc 可以对比每次生成的内存分配。
+ * 运行: mvn -P jmh test-compile exec:exec -Djmh.args="PayloadTemplateBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PayloadTemplateBenchmark {
+	private static final String GUILD_ID = "1100000000000000000";
+	private static final String CHANNEL_ID = "1100000000000000001";
+	private static final String MESSAGE_ID = "1112223334445556667";
+	private static final String MESSAGE_HASH = "6a1b2c3d-4e5f-4a6b-8c7d-9e0f1a2b3c4d";
+
+	/**
+	 * prompt的长度：short为常见的一句话，long为带多个参数和链接的长prompt
+	 */
+	@Param({"short", "long"})
+	private String promptSize;
+
+	private String prompt;
+	private String imagineJson;
+	private String upscaleJson;
+	private PayloadTemplate imagineTemplate;
+	private PayloadTemplate upscaleTemplate;
+
+	@Setup
+	public void setup() {
+		String sentence = "[4821937465012] a \"watercolor\" cat sitting on 窗台, soft light --ar 16:9 --v 5 ";
+		this.prompt = "short".equals(this.promptSize) ? sentence
+				: "<https://s.mj.run/abcdefg> " + sentence.repeat(12) + "--no text --q 2";
+		this.imagineJson = ResourceUtil.readUtf8Str("api-params/imagine.json");
+		this.upscaleJson = ResourceUtil.readUtf8Str("api-params/upscale.json");
+		Map<String, String> account = Map.of("guild_id", GUILD_ID, "channel_id", CHANNEL_ID);
+		this.imagineTemplate = PayloadTemplate.compile(this.imagineJson).bind(account);
+		this.upscaleTemplate = PayloadTemplate.compile(this.upscaleJson).bind(account);
+	}
+
+	@Benchmark
+	public byte[] imagineTemplate() {
+		return this.imagineTemplate.render(Map.of("prompt", this.prompt));
+	}
+
+	@Benchmark
+	public byte[] imagineJsonObject() {
+		String paramsStr = this.imagineJson.replace("$guild_id", GUILD_ID)
+				.replace("$channel_id", CHANNEL_ID);
+		JSONObject params = new JSONObject(paramsStr);
+		params.getJSONObject("data").getJSONArray("options").getJSONObject(0)
+				.put("value", this.prompt);
+		return params.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public byte[] upscaleTemplate() {
+		return this.upscaleTemplate.render(Map.of("message_id", MESSAGE_ID, "index", "2", "message_hash", MESSAGE_HASH));
+	}
+
+	@Benchmark
+	public byte[] upscaleReplace() {
+		String paramsStr = this.upscaleJson.replace("$guild_id", GUILD_ID)
+				.replace("$channel_id", CHANNEL_ID)
+				.replace("$message_id", MESSAGE_ID)
+				.replace("$index", "2")
+				.replace("$message_hash", MESSAGE_HASH);
+		return paramsStr.getBytes(StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,116 @@
+package com.github.starrygaze.midjourney.benchmark;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.github.starrygaze.midjourney.entity.Task;
+import com.github.starrygaze.midjourney.enums.Action;
+import com.github.starrygaze.midjourney.enums.TaskStatus;
+import com.github.starrygaze.midjourney.service.store.impl.CompactTaskRedisSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.redis.serializer.Jackson2JsonRedisSerializer;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TaskCodecBenchmark 对比任务在Redis中的三种编码：紧凑二进制编码(CompactTaskRedisSerializer)、RedisTemplate默认的JDK序列化和Jackson json.
+ * 编码、解码各测一次耗时，加上 -prof gc 对比每次的内存分配(gc.alloc.rate.norm)；编码后的大小在初始化时打印到输出中。
+ * json编码不使用 @JsonIgnore，和其他两种编码一样保存任务的隐藏字段，否则从Redis读回的任务无法继续匹配消息。
+ * 运行: mvn -P jmh test-compile exec:exec -Djmh.args="TaskCodecBenchmark -prof gc"
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TaskCodecBenchmark {
+
+	@Param({"compact", "jdk", "json"})
+	private String codec;
+
+	private RedisSerializer<Task> serializer;
+	private Task task;
+	private byte[] encoded;
+
+	@Setup
+	public void setup() {
+		this.serializer = switch (this.codec) {
+			case "compact" -> new CompactTaskRedisSerializer();
+			case "jdk" -> jdkSerializer();
+			case "json" -> jsonSerializer();
+			default -> throw new IllegalArgumentException(this.codec);
+		};
+		this.task = sampleTask();
+		this.encoded = this.serializer.serialize(this.task);
+		System.out.printf("%n%s encoded size: %d bytes%n", this.codec, this.encoded.length);
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		return this.serializer.serialize(this.task);
+	}
+
+	@Benchmark
+	public Task decode() {
+		return this.serializer.deserialize(this.encoded);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static RedisSerializer<Task> jdkSerializer() {
+		return (RedisSerializer<Task>) (RedisSerializer<?>) new JdkSerializationRedisSerializer();
+	}
+
+	private static RedisSerializer<Task> jsonSerializer() {
+		ObjectMapper objectMapper = JsonMapper.builder()
+				.disable(MapperFeature.USE_ANNOTATIONS)
+				.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+				.build();
+		Jackson2JsonRedisSerializer<Task> serializer = new Jackson2JsonRedisSerializer<>(Task.class);
+		serializer.setObjectMapper(objectMapper);
+		return serializer;
+	}
+
+	/**
+	 * 一个已完成的放大任务，字段取值接近真实数据.
+	 */
+	private static Task sampleTask() {
+		long now = System.currentTimeMillis();
+		Task task = new Task();
+		task.setAction(Action.UPSCALE);
+		task.setId("4821937465012");
+		task.setPrompt("一只坐在窗台上的水彩猫，柔和的光线");
+		task.setPromptEn("a watercolor cat sitting on the window, soft light --ar 16:9 --v 5");
+		task.setDescription("/up 4821937465012 U2");
+		task.setState("order-20231018-0042");
+		task.setSubmitTime(now - 95_000);
+		task.setStartTime(now - 90_000);
+		task.setFinishTime(now);
+		task.setImageUrl("https://cdn.discordapp.com/attachments/1100000000000000001/1163012345678901234/user_a_watercolor_cat_6a1b2c3d-4e5f-4a6b-8c7d-9e0f1a2b3c4d.png");
+		task.setProgress(100);
+		task.setStatus(TaskStatus.SUCCESS);
+		task.setKey("1163012345678901233-u2");
+		task.setFinalPrompt("[4821937465012] a watercolor cat sitting on the window, soft light --ar 16:9 --v 5");
+		task.setNotifyHook("https://example.com/mj/notify");
+		task.setRelatedTaskId("4821937465000");
+		task.setMessageId("1163012345678901234");
+		task.setMessageHash("6a1b2c3d-4e5f-4a6b-8c7d-9e0f1a2b3c4d");
+		task.setCallerId("my-key");
+		task.setChannelId("1100000000000000001");
+		return task;
+	}
+
+}
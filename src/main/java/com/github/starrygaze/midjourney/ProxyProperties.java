@@ -1,11 +1,17 @@
 package com.github.starrygaze.midjourney;
 
+import com.github.starrygaze.midjourney.enums.Action;
 import com.github.starrygaze.midjourney.enums.TranslateWay;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 @Data
 @Component
@@ -25,6 +31,10 @@ public class ProxyProperties {
      * 任务队列配置.
      */
     private final TaskQueueConfig queue = new TaskQueueConfig();
+    /**
+     * http客户端配置.
+     */
+    private final HttpClientConfig http = new HttpClientConfig();
     /**
      * 百度翻译配置.
      */
@@ -67,10 +77,65 @@ public class ProxyProperties {
          * Midjourney机器人的名称.
          */
         private String mjBotName = "Midjourney Bot";
+        /**
+         * Midjourney机器人的用户id，按id过滤消息，为空时按mj-bot-name过滤.
+         */
+        private String mjBotId = "936929561302675456";
+        /**
+         * 精简网关模式：不缓存成员、不请求成员列表，关闭用不到的实体缓存，减少大服务器下的内存和事件开销，默认开启.
+         */
+        private boolean leanGateway = true;
         /**
          * 调用discord接口时的user-agent.
          */
         private String userAgent = "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/112.0.0.0 Safari/537.36";
+        /**
+         * 图生文上传图片的复用时间，有效期内相同内容的图片直接使用已上传的附件，不再重复上传，默认1小时.
+         */
+        private Duration uploadCacheTimeout = Duration.ofHours(1);
+        /**
+         * 处理discord消息事件的线程数，同一条消息的事件由同一个线程按顺序处理，默认4.
+         */
+        private int eventThreads = 4;
+        /**
+         * 每个消息事件处理线程的等待队列长度，队列满时阻塞discord的事件线程，默认1000.
+         */
+        private int eventQueueSize = 1000;
+        /**
+         * 多账号配置，每个账号使用自己的登录token和频道. 未配置时使用上面的guild-id、channel-id、user-token作为唯一账号.
+         */
+        private List<DiscordAccountConfig> accounts = new ArrayList<>();
+    }
+
+    /**
+     * discord 账号配置
+     */
+    @Data
+    public static class DiscordAccountConfig {
+        /**
+         * 账号所在的服务器id.
+         */
+        private String guildId;
+        /**
+         * 账号使用的频道id，同时作为账号的标识，不同账号不能使用同一个频道.
+         */
+        private String channelId;
+        /**
+         * 账号的登录token.
+         */
+        private String userToken;
+        /**
+         * 调用discord接口时的user-agent，未配置时使用discord.user-agent.
+         */
+        private String userAgent;
+        /**
+         * 账号的并发数，未配置时使用queue.core-size. 按账号的订阅级别设置.
+         */
+        private Integer coreSize;
+        /**
+         * 是否启用.
+         */
+        private boolean enable = true;
     }
 
     /**
@@ -133,6 +198,41 @@ public class ProxyProperties {
          * 也可以设置为REDIS，表示使用Redis作为任务存储。这个属性的类型是一个名为 Type 的枚举，它有两个可能的值：REDIS 和 IN_MEMORY。
          */
         private Type type = Type.IN_MEMORY;
+        /**
+         * 幂等键的有效期，有效期内用相同的幂等键重复提交会返回已提交的任务，默认10分钟.
+         */
+        private Duration idempotencyTimeout = Duration.ofMinutes(10);
+        /**
+         * redis中任务的编码方式，默认COMPACT(紧凑二进制)，可选JDK(JDK序列化). COMPACT可以读取JDK编码的旧数据.
+         */
+        private Codec codec = Codec.COMPACT;
+        /**
+         * redis存储的延迟写入间隔，间隔内同一个执行中任务的多次保存合并为一次批量写入，结束状态立即写入. 为0时不延迟，默认500毫秒.
+         */
+        private Duration writeBehindDelay = Duration.ofMillis(500);
+        /**
+         * redis存储的本地缓存容量，为0时不使用本地缓存，默认10000.
+         */
+        private int nearCacheSize = 10000;
+        /**
+         * 本地缓存中执行中任务的有效期，其他节点保存任务时通过发布订阅立即失效，默认30秒.
+         */
+        private Duration nearCacheTtl = Duration.ofSeconds(30);
+        /**
+         * 本地缓存中已结束任务的有效期，已结束的任务不再变化，默认10分钟.
+         */
+        private Duration nearCacheFinishedTtl = Duration.ofMinutes(10);
+
+        public enum Codec {
+            /**
+             * 紧凑二进制编码.
+             */
+            COMPACT,
+            /**
+             * JDK序列化.
+             */
+            JDK
+        }
 
         public enum Type {
             /**
@@ -161,15 +261,70 @@ public class ProxyProperties {
         private Integer port;
     }
 
+    /**
+     * http客户端配置，discord、回调通知、翻译等所有对外调用共用一个客户端
+     */
+    @Data
+    public static class HttpClientConfig {
+        /**
+         * 连接超时时间.
+         */
+        private Duration connectTimeout = Duration.ofSeconds(10);
+        /**
+         * 读取超时时间.
+         */
+        private Duration readTimeout = Duration.ofSeconds(60);
+        /**
+         * 写入超时时间.
+         */
+        private Duration writeTimeout = Duration.ofSeconds(60);
+        /**
+         * 连接池中保留的空闲连接数.
+         */
+        private int maxIdleConnections = 20;
+        /**
+         * 空闲连接的保留时间.
+         */
+        private Duration keepAlive = Duration.ofMinutes(5);
+        /**
+         * 每个host同时进行的异步请求数.
+         */
+        private int maxRequestsPerHost = 20;
+    }
+
     /**
      * 任务队列配置
      */
     @Data
     public static class TaskQueueConfig {
         /**
-         * 并发数.
+         * 并发数(同时在discord执行中的任务数).
          */
         private int coreSize = 3;
+        /**
+         * 是否根据discord和midjourney的限流反馈自动调整并发数，core-size为初始并发数.
+         */
+        private boolean adaptive = true;
+        /**
+         * 自动调整时的最小并发数.
+         */
+        private int minCoreSize = 1;
+        /**
+         * 自动调整时的最大并发数.
+         */
+        private int maxCoreSize = 12;
+        /**
+         * 派发线程数，只负责向discord提交任务和处理状态变更，不随并发数增长.
+         */
+        private int dispatchSize = 2;
+        /**
+         * 保存任务和发送回调的线程数，同一个任务的保存和回调按变更顺序执行，不占用派发线程.
+         */
+        private int notifyThreads = 4;
+        /**
+         * 每个保存和回调线程的等待队列长度，队列满时派发线程等待.
+         */
+        private int notifyQueueSize = 1000;
         /**
          * 等待队列长度.
          */
@@ -178,5 +333,38 @@ public class ProxyProperties {
          * 任务超时时间(分钟).
          */
         private int timeoutMinutes = 5;
+        /**
+         * 各任务类型的超时时间，未配置的使用timeout-minutes. 图生文比出图快得多，默认2分钟.
+         */
+        private Map<Action, Duration> actionTimeouts = new EnumMap<>(Map.of(Action.DESCRIBE, Duration.ofMinutes(2)));
+        /**
+         * 执行中进度变更的最小通知间隔，间隔内的多次进度变更合并为一次保存和回调，状态变更不受限制，默认3秒.
+         */
+        private Duration progressNotifyInterval = Duration.ofSeconds(3);
+        /**
+         * 执行中的任务超过这个时间没有收到进度或状态变更时，从频道历史中查找可能错过的消息，默认60秒.
+         */
+        private Duration reconcileAfter = Duration.ofSeconds(60);
+        /**
+         * 批量提交一次最多的任务数，超过时整批拒绝.
+         */
+        private int maxBatchSize = 20;
+        /**
+         * 调用方标识的请求头，未传时依次使用回调地址的host、请求来源ip.
+         */
+        private String callerHeader = "X-Api-Key";
+        /**
+         * 调用方的权重，同一优先级内按权重公平排队，未配置的调用方权重为1.
+         */
+        private Map<String, Integer> callerWeights = new HashMap<>();
+        /**
+         * 任务类型的优先级，数值小的优先派发. 默认放大优先，其次变换、重新生成和图生文，最后是新的出图任务.
+         */
+        private Map<Action, Integer> actionPriorities = new EnumMap<>(Map.of(
+                Action.UPSCALE, 0,
+                Action.VARIATION, 1,
+                Action.RESET, 1,
+                Action.DESCRIBE, 1,
+                Action.IMAGINE, 2));
     }
 }
@@ -1,7 +1,10 @@
 package com.github.starrygaze.midjourney.controller;
 
+import cn.hutool.core.bean.BeanUtil;
 import com.github.starrygaze.midjourney.service.store.TaskStoreService;
+import com.github.starrygaze.midjourney.service.task.TaskService;
 import com.github.starrygaze.midjourney.entity.Task;
+import com.github.starrygaze.midjourney.enums.TaskStatus;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
@@ -9,6 +12,7 @@ import lombok.RequiredArgsConstructor;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import java.util.List;
@@ -20,17 +24,32 @@ import java.util.List;
 public class TaskController {
 
 	private final TaskStoreService taskStoreService;
+	private final TaskService taskService;
 
-	@ApiOperation(value = "查询所有任务")
+	@ApiOperation(value = "查询任务", notes = "按提交时间、任务ID倒序返回，下一页的before、beforeId取本页最后一个任务的提交时间和ID，不传参数时返回所有任务")
 	@GetMapping("/list")
-	public List<Task> listTask() {
-		return this.taskStoreService.listTask();
+	public List<Task> listTask(@ApiParam(value = "任务状态") @RequestParam(required = false) TaskStatus status,
+			@ApiParam(value = "游标：上一页最后一个任务的提交时间") @RequestParam(required = false) Long before,
+			@ApiParam(value = "游标：上一页最后一个任务的ID，不传时只返回提交时间早于before的任务") @RequestParam(required = false) String beforeId,
+			@ApiParam(value = "最多返回的任务数") @RequestParam(defaultValue = "0") int limit) {
+		return this.taskStoreService.listTask(status, before, beforeId, limit);
 	}
 
 	@ApiOperation(value = "指定ID获取任务")
 	@GetMapping("/{id}/fetch")
 	public Task getTask(@ApiParam(value = "任务ID") @PathVariable String id) {
-		return this.taskStoreService.getTask(id);
+		// 执行中的任务直接返回内存中的对象，进度和预览图是最新的，不受通知合并的影响
+		Task task = this.taskService.getTask(id);
+		if (task == null) {
+			task = this.taskStoreService.getTask(id);
+		}
+		if (task == null) {
+			return null;
+		}
+		// 登记表和近端缓存中的任务是共享对象，预计完成时间只写在返回的副本上
+		Task view = BeanUtil.copyProperties(task, Task.class, "changeCallback");
+		view.setEstimatedFinishTime(this.taskService.estimateFinishTime(task));
+		return view;
 	}
 
 }
@@ -1,9 +1,11 @@
 package com.github.starrygaze.midjourney.controller;
 
+import cn.hutool.core.io.FileUtil;
 import cn.hutool.core.text.CharSequenceUtil;
 import cn.hutool.core.util.RandomUtil;
 import com.github.starrygaze.midjourney.ProxyProperties;
 import com.github.starrygaze.midjourney.dto.DescribeDTO;
+import com.github.starrygaze.midjourney.dto.DescribeUploadDTO;
 import com.github.starrygaze.midjourney.dto.SubmitDTO;
 import com.github.starrygaze.midjourney.dto.UVSubmitDTO;
 import com.github.starrygaze.midjourney.enums.Action;
@@ -23,18 +25,46 @@ import eu.maxschuster.dataurl.IDataUrlSerializer;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import lombok.RequiredArgsConstructor;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestPart;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.multipart.MultipartFile;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 
 @Api(tags = "任务提交")
 @RestController
 @RequestMapping("/trigger")
 @RequiredArgsConstructor
 public class TriggerController {
+	private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+	/**
+	 * 上传图片的大小上限，与discord附件的上限一致
+	 */
+	private static final long MAX_IMAGE_SIZE = 25L * 1024 * 1024;
+	/**
+	 * 相同幂等键的任务正在提交时，建议调用方重试的秒数
+	 */
+	private static final long IDEMPOTENT_RETRY_AFTER_SECONDS = 1;
 
 	private final TranslateService translateService;
 	private final TaskStoreService taskStoreService;
@@ -44,7 +74,53 @@ public class TriggerController {
 
 	@ApiOperation(value = "提交Imagine或UV任务")
 	@PostMapping("/submit")
-	public Message<String> submit(@RequestBody SubmitDTO submitDTO) {
+	public Message<String> submit(@RequestBody SubmitDTO submitDTO, HttpServletRequest request, HttpServletResponse response) {
+		String caller = resolveCaller(request, submitDTO.getNotifyHook());
+		String idempotencyKey = resolveIdempotencyKey(request, submitDTO.getIdempotencyKey());
+		return withRetryAfter(submitIdempotent(request, idempotencyKey, taskId -> doSubmit(submitDTO, caller, taskId, this.translateService::translateToEnglish)), response);
+	}
+
+	@ApiOperation(value = "批量提交Imagine或UV任务")
+	@PostMapping("/submit-batch")
+	public List<Message<String>> submitBatch(@RequestBody List<SubmitDTO> submitDTOList, HttpServletRequest request, HttpServletResponse response) {
+		if (submitDTOList == null || submitDTOList.isEmpty()) {
+			return List.of(Message.validationError());
+		}
+		int maxBatchSize = this.properties.getQueue().getMaxBatchSize();
+		if (submitDTOList.size() > maxBatchSize) {
+			response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+			return List.of(Message.of(Message.VALIDATION_ERROR_CODE, "批量提交最多" + maxBatchSize + "个任务"));
+		}
+		// 先把所有imagine任务需要翻译的部分去重后一次翻译完，再依次校验入队
+		List<String> prompts = submitDTOList.stream()
+				.filter(dto -> Action.IMAGINE.equals(dto.getAction()) && CharSequenceUtil.isNotBlank(dto.getPrompt()))
+				.map(dto -> promptText(dto.getPrompt()))
+				.distinct().toList();
+		Map<String, String> translated = new HashMap<>();
+		if (!prompts.isEmpty()) {
+			List<String> results = this.translateService.translateToEnglish(prompts);
+			for (int i = 0; i < prompts.size(); i++) {
+				translated.put(prompts.get(i), results.get(i));
+			}
+		}
+		List<Message<String>> results = new ArrayList<>(submitDTOList.size());
+		Object retryAfter = null;
+		for (SubmitDTO submitDTO : submitDTOList) {
+			String caller = resolveCaller(request, submitDTO.getNotifyHook());
+			Message<String> result = submitIdempotent(request, submitDTO.getIdempotencyKey(),
+					taskId -> doSubmit(submitDTO, caller, taskId, text -> translated.getOrDefault(text, text)));
+			if (result.getProperty("retryAfter") != null) {
+				retryAfter = result.getProperty("retryAfter");
+			}
+			results.add(result);
+		}
+		if (retryAfter != null) {
+			response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter));
+		}
+		return results;
+	}
+
+	private Message<String> doSubmit(SubmitDTO submitDTO, String caller, String taskId, UnaryOperator<String> translator) {
 		if (submitDTO.getAction() == null) {
 			return Message.validationError();
 		}
@@ -54,7 +130,8 @@ public class TriggerController {
 		}
 		Task task = new Task();
 		task.setNotifyHook(CharSequenceUtil.isBlank(submitDTO.getNotifyHook()) ? this.properties.getNotifyHook() : submitDTO.getNotifyHook());
-		task.setId(RandomUtil.randomNumbers(16));
+		task.setCallerId(caller);
+		task.setId(taskId);
 		task.setSubmitTime(System.currentTimeMillis());
 		task.setState(submitDTO.getState());
 		task.setAction(submitDTO.getAction());
@@ -65,13 +142,8 @@ public class TriggerController {
 			}
 			task.setKey(task.getId());
 			task.setPrompt(prompt);
-			String promptEn;
-			int paramStart = prompt.indexOf(" --");
-			if (paramStart > 0) {
-				promptEn = this.translateService.translateToEnglish(prompt.substring(0, paramStart)).trim() + prompt.substring(paramStart);
-			} else {
-				promptEn = this.translateService.translateToEnglish(prompt).trim();
-			}
+			String promptText = promptText(prompt);
+			String promptEn = translator.apply(promptText).trim() + prompt.substring(promptText.length());
 			if (this.bannedPromptHelper.isBanned(promptEn)) {
 				return Message.of(Message.VALIDATION_ERROR_CODE, "可能包含敏感词");
 			}
@@ -94,6 +166,8 @@ public class TriggerController {
 		task.setPromptEn(targetTask.getPromptEn());
 		task.setFinalPrompt(targetTask.getFinalPrompt());
 		task.setRelatedTaskId(ConvertUtils.findTaskIdByFinalPrompt(targetTask.getFinalPrompt()));
+		// 放大、变换只能由原任务所在的账号执行
+		task.setChannelId(targetTask.getChannelId());
 		task.setKey(targetTask.getMessageId() + "-" + submitDTO.getAction());
 		if (Action.UPSCALE.equals(submitDTO.getAction())) {
 			task.setDescription("/up " + submitDTO.getTaskId() + " U" + submitDTO.getIndex());
@@ -108,7 +182,7 @@ public class TriggerController {
 
 	@ApiOperation(value = "提交选中放大或变换任务")
 	@PostMapping("/submit-uv")
-	public Message<String> submitUV(@RequestBody UVSubmitDTO uvSubmitDTO) {
+	public Message<String> submitUV(@RequestBody UVSubmitDTO uvSubmitDTO, HttpServletRequest request, HttpServletResponse response) {
 		UVData uvData = ConvertUtils.convertUVData(uvSubmitDTO.getContent());
 		if (uvData == null) {
 			return Message.of(Message.VALIDATION_ERROR_CODE, "/up 参数错误");
@@ -119,15 +193,22 @@ public class TriggerController {
 		submitDTO.setIndex(uvData.getIndex());
 		submitDTO.setState(uvSubmitDTO.getState());
 		submitDTO.setNotifyHook(uvSubmitDTO.getNotifyHook());
-		return submit(submitDTO);
+		submitDTO.setIdempotencyKey(uvSubmitDTO.getIdempotencyKey());
+		return submit(submitDTO, request, response);
 	}
 
 	@ApiOperation(value = "提交Describe图生文任务")
 	@PostMapping("/describe")
-	public Message<String> describe(@RequestBody DescribeDTO describeDTO) {
+	public Message<String> describe(@RequestBody DescribeDTO describeDTO, HttpServletRequest request, HttpServletResponse response) {
 		if (CharSequenceUtil.isBlank(describeDTO.getBase64())) {
 			return Message.validationError();
 		}
+		String caller = resolveCaller(request, describeDTO.getNotifyHook());
+		String idempotencyKey = resolveIdempotencyKey(request, describeDTO.getIdempotencyKey());
+		return withRetryAfter(submitIdempotent(request, idempotencyKey, taskId -> doDescribe(describeDTO, caller, taskId)), response);
+	}
+
+	private Message<String> doDescribe(DescribeDTO describeDTO, String caller, String taskId) {
 		IDataUrlSerializer serializer = new DataUrlSerializer();
 		DataUrl dataUrl;
 		try {
@@ -135,16 +216,198 @@ public class TriggerController {
 		} catch (MalformedURLException e) {
 			return Message.of(Message.VALIDATION_ERROR_CODE, "base64格式错误");
 		}
+		Task task = newDescribeTask(taskId, MimeTypeUtils.guessFileSuffix(dataUrl.getMimeType()), describeDTO.getState(),
+				describeDTO.getNotifyHook(), caller);
+		return this.taskService.submitDescribe(task, dataUrl);
+	}
+
+	@ApiOperation(value = "上传图片文件提交Describe图生文任务")
+	@PostMapping(value = "/describe-upload", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+	public Message<String> describeUpload(@RequestPart("file") MultipartFile file, DescribeUploadDTO describeUploadDTO,
+			HttpServletRequest request, HttpServletResponse response) {
+		if (file.isEmpty()) {
+			return Message.validationError();
+		}
+		return describeFile(describeUploadDTO, file.getContentType(), file::transferTo, request, response);
+	}
+
+	@ApiOperation(value = "以请求体上传图片提交Describe图生文任务")
+	@PostMapping(value = "/describe-upload", consumes = {MediaType.APPLICATION_OCTET_STREAM_VALUE, "image/*"})
+	public Message<String> describeUploadStream(DescribeUploadDTO describeUploadDTO, HttpServletRequest request, HttpServletResponse response) {
+		if (request.getContentLengthLong() > MAX_IMAGE_SIZE) {
+			return Message.of(Message.VALIDATION_ERROR_CODE, "图片过大");
+		}
+		String mimeType = CharSequenceUtil.isNotBlank(describeUploadDTO.getMimeType()) ? describeUploadDTO.getMimeType() : request.getContentType();
+		return describeFile(describeUploadDTO, mimeType,
+				imageFile -> copyLimited(request.getInputStream(), imageFile), request, response);
+	}
+
+	/**
+	 * copyLimited(InputStream in, Path imageFile)：把请求体写入临时文件，最多写入 MAX_IMAGE_SIZE + 1 个字节。
+	 * 分块传输的请求没有Content-Length，超过上限时停止读取，由调用方按文件大小拒绝并删除文件，不会把过大的请求体全部写入磁盘。
+	 * @param in
+	 * @param imageFile
+	 * @throws IOException
+	 */
+	private static void copyLimited(InputStream in, Path imageFile) throws IOException {
+		byte[] buffer = new byte[8192];
+		long remaining = MAX_IMAGE_SIZE + 1;
+		try (OutputStream out = Files.newOutputStream(imageFile)) {
+			int n;
+			while (remaining > 0 && (n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+				out.write(buffer, 0, n);
+				remaining -= n;
+			}
+		}
+	}
+
+	/**
+	 * 上传的图片先落到临时文件，再流式上传到discord，整个过程不把图片读入内存。临时文件的所有权在提交后交给任务服务，没有提交(如幂等重复)时在这里删除。
+	 * @param describeUploadDTO
+	 * @param mimeType
+	 * @param writer 把上传的图片写入临时文件
+	 * @param request
+	 * @param response
+	 * @return
+	 */
+	private Message<String> describeFile(DescribeUploadDTO describeUploadDTO, String mimeType, ImageWriter writer,
+			HttpServletRequest request, HttpServletResponse response) {
+		String suffix = MimeTypeUtils.guessFileSuffix(mimeType);
+		if (!CharSequenceUtil.startWithIgnoreCase(mimeType, "image/") || suffix == null) {
+			return Message.of(Message.VALIDATION_ERROR_CODE, "不支持的图片类型");
+		}
+		Path imageFile = null;
+		try {
+			imageFile = Files.createTempFile("mj-describe-", "." + suffix);
+			writer.write(imageFile);
+			if (Files.size(imageFile) == 0 || Files.size(imageFile) > MAX_IMAGE_SIZE) {
+				FileUtil.del(imageFile);
+				return Message.of(Message.VALIDATION_ERROR_CODE, "图片为空或过大");
+			}
+		} catch (IOException e) {
+			if (imageFile != null) {
+				FileUtil.del(imageFile);
+			}
+			return Message.of(Message.VALIDATION_ERROR_CODE, "读取图片失败");
+		}
+		Path file = imageFile;
+		String caller = resolveCaller(request, describeUploadDTO.getNotifyHook());
+		String idempotencyKey = resolveIdempotencyKey(request, describeUploadDTO.getIdempotencyKey());
+		AtomicBoolean submitted = new AtomicBoolean();
+		Message<String> result = submitIdempotent(request, idempotencyKey, taskId -> {
+			submitted.set(true);
+			Task task = newDescribeTask(taskId, suffix, describeUploadDTO.getState(), describeUploadDTO.getNotifyHook(), caller);
+			return this.taskService.submitDescribe(task, mimeType, file);
+		});
+		if (!submitted.get()) {
+			FileUtil.del(file);
+		}
+		return withRetryAfter(result, response);
+	}
+
+	private Task newDescribeTask(String taskId, String suffix, String state, String notifyHook, String caller) {
 		Task task = new Task();
 		task.setSubmitTime(System.currentTimeMillis());
-		task.setId(RandomUtil.randomNumbers(16));
-		String taskFileName = task.getId() + "." + MimeTypeUtils.guessFileSuffix(dataUrl.getMimeType());
-		task.setState(describeDTO.getState());
+		task.setId(taskId);
+		String taskFileName = task.getId() + "." + suffix;
+		task.setState(state);
 		task.setAction(Action.DESCRIBE);
 		task.setDescription("/describe " + taskFileName);
 		task.setKey(taskFileName);
-		task.setNotifyHook(CharSequenceUtil.isBlank(describeDTO.getNotifyHook()) ? this.properties.getNotifyHook() : describeDTO.getNotifyHook());
-		return this.taskService.submitDescribe(task, dataUrl);
+		task.setNotifyHook(CharSequenceUtil.isBlank(notifyHook) ? this.properties.getNotifyHook() : notifyHook);
+		task.setCallerId(caller);
+		return task;
+	}
+
+	/**
+	 * 把上传的图片写入临时文件
+	 */
+	@FunctionalInterface
+	private interface ImageWriter {
+		void write(Path imageFile) throws IOException;
+	}
+
+	/**
+	 * 按幂等键提交任务：在有效期内用相同的幂等键重复提交时，直接返回第一次提交的任务ID，不再重复创建任务。
+	 * 幂等键只按请求头中明确的调用方标识(如API key)区分，没有时只按幂等键本身，不使用来源ip和回调地址，换了出口ip的重试同样生效。
+	 * 第一次提交还没有结束(任务还没有保存)时，重复的提交返回 IN_PROGRESS_CODE，不返回可能提交失败的任务ID，调用方稍后重试即可。
+	 * 幂等键记录保存在任务存储中，使用redis存储时多个节点之间同样生效；提交失败(如校验错误、队列已满)时释放幂等键，允许重试。
+	 * @param request 取调用方标识请求头
+	 * @param idempotencyKey 幂等键，为空时不做幂等处理
+	 * @param submitter 使用新生成的任务ID提交任务
+	 * @return
+	 */
+	private Message<String> submitIdempotent(HttpServletRequest request, String idempotencyKey, Function<String, Message<String>> submitter) {
+		String taskId = RandomUtil.randomNumbers(16);
+		if (CharSequenceUtil.isBlank(idempotencyKey)) {
+			return submitter.apply(taskId);
+		}
+		String caller = request.getHeader(this.properties.getQueue().getCallerHeader());
+		String key = CharSequenceUtil.isBlank(caller) ? idempotencyKey : caller + ":" + idempotencyKey;
+		String existingTaskId = this.taskStoreService.bindIdempotencyKey(key, taskId, this.properties.getTaskStore().getIdempotencyTimeout());
+		if (existingTaskId != null) {
+			if (this.taskService.getTask(existingTaskId) == null && this.taskStoreService.getTask(existingTaskId) == null) {
+				return Message.<String>of(Message.IN_PROGRESS_CODE, "相同幂等键的任务正在提交，请稍后重试")
+						.setProperty("retryAfter", IDEMPOTENT_RETRY_AFTER_SECONDS);
+			}
+			return Message.success(Message.SUCCESS_CODE, "重复提交，返回已提交的任务", existingTaskId);
+		}
+		Message<String> result = submitter.apply(taskId);
+		if (result.getCode() != Message.SUCCESS_CODE && result.getCode() != Message.WAITING_CODE) {
+			this.taskStoreService.unbindIdempotencyKey(key);
+		}
+		return result;
+	}
+
+	/**
+	 * 取prompt中需要翻译的部分，即 --参数 之前的文本.
+	 */
+	private String promptText(String prompt) {
+		int paramStart = prompt.indexOf(" --");
+		return paramStart > 0 ? prompt.substring(0, paramStart) : prompt;
+	}
+
+	private String resolveIdempotencyKey(HttpServletRequest request, String idempotencyKey) {
+		String header = request.getHeader(IDEMPOTENCY_KEY_HEADER);
+		return CharSequenceUtil.isNotBlank(header) ? header : idempotencyKey;
+	}
+
+	/**
+	 * 队列已满被拒绝时，把按队列消化速度估算的重试秒数写入Retry-After响应头。
+	 * @param result
+	 * @param response
+	 * @return
+	 */
+	private Message<String> withRetryAfter(Message<String> result, HttpServletResponse response) {
+		Object retryAfter = result.getProperty("retryAfter");
+		if (retryAfter != null) {
+			response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfter));
+		}
+		return result;
+	}
+
+	/**
+	 * 确定调用方标识，用于公平排队：优先取配置的请求头(如API key)，其次是调用方自己传的回调地址的host，最后是请求来源ip。
+	 * @param request
+	 * @param notifyHook 调用方传入的回调地址，不包含全局回调地址
+	 * @return
+	 */
+	private String resolveCaller(HttpServletRequest request, String notifyHook) {
+		String caller = request.getHeader(this.properties.getQueue().getCallerHeader());
+		if (CharSequenceUtil.isNotBlank(caller)) {
+			return caller;
+		}
+		if (CharSequenceUtil.isNotBlank(notifyHook)) {
+			try {
+				String host = URI.create(notifyHook).getHost();
+				if (CharSequenceUtil.isNotBlank(host)) {
+					return host;
+				}
+			} catch (IllegalArgumentException e) {
+				// 回调地址格式错误时按来源ip区分
+			}
+		}
+		return request.getRemoteAddr();
 	}
 
 }
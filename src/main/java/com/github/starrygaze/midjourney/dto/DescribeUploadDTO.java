@@ -0,0 +1,34 @@
+package com.github.starrygaze.midjourney.dto;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import lombok.Data;
+
+@Data
+@ApiModel("上传图片提交图生文任务参数")
+public class DescribeUploadDTO {
+
+	/**
+	 * 自定义参数.
+	 */
+	@ApiModelProperty(value = "自定义参数")
+	private String state;
+
+	/**
+	 * notifyHook of caller.
+	 */
+	@ApiModelProperty("回调地址")
+	private String notifyHook;
+
+	/**
+	 * 幂等键，也可以通过请求头 Idempotency-Key 传递.
+	 */
+	@ApiModelProperty("幂等键: 有效期内重复提交返回已提交的任务ID")
+	private String idempotencyKey;
+
+	/**
+	 * 图片类型，直接上传请求体时使用，未传时取请求的Content-Type.
+	 */
+	@ApiModelProperty("图片类型，如image/png，直接上传请求体时未传则取Content-Type")
+	private String mimeType;
+}
@@ -24,4 +24,10 @@ public class UVSubmitDTO {
 	 */
 	@ApiModelProperty("回调地址")
 	private String notifyHook;
+
+	/**
+	 * 幂等键，也可以通过请求头 Idempotency-Key 传递.
+	 */
+	@ApiModelProperty("幂等键: 有效期内重复提交返回已提交的任务ID")
+	private String idempotencyKey;
 }
@@ -9,4 +9,12 @@ public class MessageData {
 	private String prompt;
 	private int index;
 	private String status;
+	/**
+	 * prompt中[]之间的任务ID.
+	 */
+	private String taskId;
+	/**
+	 * 进度百分比，状态为进度(如 31%)时才有值.
+	 */
+	private Integer progress;
 }
@@ -9,9 +9,10 @@ import lombok.Data;
 
 import java.io.Serial;
 import java.io.Serializable;
+import java.util.function.Consumer;
 
 /**
- * 总的来说，这个Task类用于表示一个任务的各种信息，并提供了线程同步控制的方法
+ * 总的来说，这个Task类用于表示一个任务的各种信息，并提供了状态变更的回调通知
  */
 @Data
 @ApiModel("任务")
@@ -79,9 +80,21 @@ public class Task implements Serializable {
 	private String imageUrl;
 
 	/**
-	 * 任务的状态，默认为未开始
+	 * 出图进度，执行中按midjourney消息中的百分比更新
 	 */
-	private TaskStatus status = TaskStatus.NOT_START;
+	@ApiModelProperty("进度百分比")
+	private Integer progress;
+
+	/**
+	 * 出图过程中的预览图URL
+	 */
+	@ApiModelProperty("预览图url")
+	private String previewImageUrl;
+
+	/**
+	 * 任务的状态，默认为未开始；消息处理器和超时检查在不同线程里变更，执行中的变更通过transition进行
+	 */
+	private volatile TaskStatus status = TaskStatus.NOT_START;
 
     /**
      * 任务失败的原因
@@ -89,8 +102,14 @@ public class Task implements Serializable {
 	@ApiModelProperty("失败原因")
 	private String failReason;
 
+	/**
+	 * 预计完成时间，按最近同类任务的耗时和队列消化速度估算，查询时计算，不存储
+	 */
+	@ApiModelProperty("预计完成时间")
+	private transient Long estimatedFinishTime;
+
 
-	//这个类还包含了一些隐藏的字段，如：key、finalPrompt、notifyHook、relatedTaskId、messageId、messageHash。这些字段在进行JSON序列化时会被忽略，不会被包含在生成的JSON中。
+	//这个类还包含了一些隐藏的字段，如：key、finalPrompt、notifyHook、relatedTaskId、messageId、messageHash、callerId(调用方标识)、channelId(执行任务的discord账号所用的频道)、lastUpdateTime(最近一次变更的时间)。这些字段在进行JSON序列化时会被忽略，不会被包含在生成的JSON中。
 	// Hidden -- start
 	@JsonIgnore
 	private String key;
@@ -104,28 +123,44 @@ public class Task implements Serializable {
 	private String messageId;
 	@JsonIgnore
 	private String messageHash;
+	@JsonIgnore
+	private String callerId;
+	@JsonIgnore
+	private String channelId;
+	/**
+	 * 最近一次收到进度或状态变更的时间，用于判断执行中的任务是否卡住，不存储
+	 */
+	@JsonIgnore
+	private transient Long lastUpdateTime;
 	// Hidden -- end
 
-	//此外，这个类还包含了一个lock对象，用于线程的同步控制。类中定义了两个方法sleep和awake，分别用于使线程等待和唤醒等待的线程。
+	//此外，这个类还包含了一个状态变更回调，由任务服务在派发任务时注册。消息处理器修改任务后调用notifyChange驱动状态流转，不再有线程阻塞等待。
 	@JsonIgnore
-	private final transient Object lock = new Object();
+	private transient Consumer<Task> changeCallback;
 
 	/**
-	 * 使线程等待
-	 * @throws InterruptedException
+	 * 在任务未结束时应用变更并流转到指定状态，已结束(SUCCESS、FAILURE)的任务不再变更，
+	 * 晚到的进度更新或超时不会覆盖已经得出的结果.
+	 * @param target 目标状态
+	 * @param changes 随状态一起写入的其他字段
+	 * @return 是否流转成功
 	 */
-	public void sleep() throws InterruptedException {
-		synchronized (this.lock) {
-			this.lock.wait();
+	public synchronized boolean transition(TaskStatus target, Consumer<Task> changes) {
+		if (this.status == TaskStatus.SUCCESS || this.status == TaskStatus.FAILURE) {
+			return false;
 		}
+		changes.accept(this);
+		this.status = target;
+		return true;
 	}
 
 	/**
-	 * 唤醒等待的线程
+	 * 通知任务状态已变更，交由注册的回调处理
 	 */
-	public void awake() {
-		synchronized (this.lock) {
-			this.lock.notifyAll();
+	public void notifyChange() {
+		Consumer<Task> callback = this.changeCallback;
+		if (callback != null) {
+			callback.accept(this);
 		}
 	}
 
@@ -4,6 +4,9 @@ import io.swagger.annotations.ApiModel;
 import io.swagger.annotations.ApiModelProperty;
 import lombok.Getter;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * 这个类名为Message，是一个通用的消息响应类，通常用于封装API接口的返回数据。它包含了状态码(code)，描述信息(description)，以及泛型对象(result)用于存储返回的数据。
  * 这个设计允许API接口返回统一的格式，方便前端处理和显示。这个类还定义了几个静态的消息代码，如SUCCESS_CODE，WAITING_CODE，NOT_FOUND_CODE，VALIDATION_ERROR_CODE
@@ -25,6 +28,9 @@ public class Message<T> {
 
 	private final T result;
 
+	@ApiModelProperty("扩展字段: 如排队位置position、预计完成时间estimatedFinishTime、建议重试秒数retryAfter")
+	private final Map<String, Object> properties = new HashMap<>();
+
 	public static final int SUCCESS_CODE = 1;
 
 	public static final int WAITING_CODE = 2;
@@ -33,6 +39,11 @@ public class Message<T> {
 
 	public static final int VALIDATION_ERROR_CODE = 4;
 
+	/**
+	 * 相同幂等键的提交还在进行中，结果未知，稍后重试
+	 */
+	public static final int IN_PROGRESS_CODE = 5;
+
 	public static final int FAILURE_CODE = 9;
 
 	public static <Y> Message<Y> success() {
@@ -71,6 +82,15 @@ public class Message<T> {
 		return new Message<>(code, description, result);
 	}
 
+	public Message<T> setProperty(String name, Object value) {
+		this.properties.put(name, value);
+		return this;
+	}
+
+	public Object getProperty(String name) {
+		return this.properties.get(name);
+	}
+
 	private Message(int code, String description) {
 		this(code, description, null);
 	}
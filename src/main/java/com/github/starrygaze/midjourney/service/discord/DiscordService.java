@@ -1,7 +1,7 @@
 package com.github.starrygaze.midjourney.service.discord;
 
 import com.github.starrygaze.midjourney.result.Message;
-import eu.maxschuster.dataurl.DataUrl;
+import org.springframework.core.io.Resource;
 
 public interface DiscordService {
 
@@ -13,8 +13,21 @@ public interface DiscordService {
 
 	Message<Void> reset(String messageId, String messageHash);
 
-	Message<String> upload(String fileName, DataUrl dataUrl);
+	Message<String> upload(String fileName, String mimeType, Resource image);
 
 	Message<Void> describe(String finalFileName);
 
+	/**
+	 * discord暂时不可用(熔断)或交互接口被限流时返回距离恢复的毫秒数，可用时返回0.
+	 * 提交交互的方法在被限流时抛出 RetryLaterException，不会在调用线程上等待.
+	 * @return
+	 */
+	long unavailableMillis();
+
+	/**
+	 * discord熔断后是否正在试探恢复，此时应只提交一个任务，等试探结果出来后再继续.
+	 * @return
+	 */
+	boolean isRecovering();
+
 }
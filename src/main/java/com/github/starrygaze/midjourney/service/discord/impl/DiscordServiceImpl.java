@@ -1,68 +1,151 @@
 package com.github.starrygaze.midjourney.service.discord.impl;
 
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.CacheObj;
+import cn.hutool.cache.impl.LRUCache;
 import cn.hutool.core.io.resource.ResourceUtil;
 import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.crypto.digest.DigestUtil;
 import com.github.starrygaze.midjourney.ProxyProperties;
 import com.github.starrygaze.midjourney.result.Message;
 import com.github.starrygaze.midjourney.service.discord.DiscordService;
-import eu.maxschuster.dataurl.DataUrl;
-import lombok.RequiredArgsConstructor;
+import com.github.starrygaze.midjourney.support.CircuitBreaker;
+import com.github.starrygaze.midjourney.support.DiscordRateLimiter;
+import com.github.starrygaze.midjourney.support.PayloadTemplate;
+import com.github.starrygaze.midjourney.support.RetryLaterException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.springframework.core.io.Resource;
 import org.springframework.http.*;
-import org.springframework.stereotype.Service;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
-import javax.annotation.PostConstruct;
+import org.springframework.web.client.UnknownHttpStatusCodeException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 /**
  * 这个类名为 DiscordServiceImpl 是一个实现 DiscordService 接口的服务类。它主要负责和 Discord API 进行交互。
+ * 每个discord账号对应一个实例，由 DiscordAccountPool 按账号配置创建，使用账号自己的登录token和频道。
+ * 所有请求都经过账号的限流调度器，按discord返回的限流桶控制，被限流时抛出 RetryLaterException，由任务派发在等待结束后重新提交，而不是直接失败。
+ * 上传的图片按内容的SHA-256缓存discord返回的附件名，有效期内相同的图片直接复用，省去申请附件和上传两次请求。
+ * discord不可用(5xx、网络错误)时按指数退避加随机抖动重试，重试由任务派发在时间轮上到期后重新提交，不在请求线程上等待；交互请求不是幂等的，只重试确定没有被处理的失败；
+ * 每类接口有一个熔断器，连续失败后直接拒绝请求，交互接口熔断期间账号暂停派发任务。
  */
 @Slf4j
-@Service
-@RequiredArgsConstructor
 public class DiscordServiceImpl implements DiscordService {
 
-	private final ProxyProperties properties;
-
 	private static final String DISCORD_API_URL = "https://discord.com/api/v9/interactions";
+	private static final String INTERACTIONS_ROUTE = "POST /interactions";
+	private static final long BACKOFF_BASE_MILLIS = 500;
+	private static final int BACKOFF_MAX_SHIFT = 6;
+	private static final int CIRCUIT_FAILURE_THRESHOLD = 5;
+	private static final long CIRCUIT_OPEN_MILLIS = TimeUnit.SECONDS.toMillis(30);
+	/**
+	 * 半开时已有试探请求，其他请求等待试探结果的时间
+	 */
+	private static final long PROBE_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+	private final String userAgent;
 
-	private String userAgent;
+	private final String discordUploadUrl;
 
-	private String discordUploadUrl;
+	private final PayloadTemplate imagineTemplate;
 
-	private String imagineParamsJson;
+	private final PayloadTemplate upscaleTemplate;
 
-	private String upscaleParamsJson;
+	private final PayloadTemplate variationTemplate;
 
-	private String variationParamsJson;
+	private final PayloadTemplate resetTemplate;
 
-	private String resetParamsJson;
+	private final PayloadTemplate describeTemplate;
 
-	private String describeParamsJson;
+	private final String discordUserToken;
 
-	private String discordUserToken;
+	private final String discordChannelId;
 
-	private String discordGuildId;
+	private final RestTemplate restTemplate;
 
-	private String discordChannelId;
+	private final OkHttpClient httpClient;
+
+	private final DiscordRateLimiter rateLimiter = new DiscordRateLimiter();
+
+	private final CircuitBreaker interactionsBreaker = new CircuitBreaker("interactions", CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_MILLIS);
+
+	private final CircuitBreaker attachmentsBreaker = new CircuitBreaker("attachments", CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_MILLIS);
+
+	private final CircuitBreaker uploadBreaker = new CircuitBreaker("upload", CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_MILLIS);
 
 	/**
-	 * @PostConstruct init(): 这个是一个初始化方法，它在类实例化之后自动被调用。该方法从配置类中读取必要的 Discord 属性和参数，并读取预定的 API 参数模板。
+	 * 图片内容的SHA-256 -> 已上传的附件名
 	 */
-	@PostConstruct
-	void init() {
-		this.discordUserToken = this.properties.getDiscord().getUserToken();
-		this.discordGuildId = this.properties.getDiscord().getGuildId();
-		this.discordChannelId = this.properties.getDiscord().getChannelId();
+	private final LRUCache<String, String> uploadCache;
+
+	private final Counter uploadCacheHits;
+
+	private final Counter uploadCacheMisses;
+
+	/**
+	 * 构造函数：从账号配置中读取必要的 Discord 属性，并读取预定的 API 参数模板，编译时固定账号的服务器id和频道id。
+	 * @param account 账号配置
+	 * @param discord discord配置，账号未单独配置user-agent时使用其中的默认值
+	 * @param restTemplate 共用的http客户端
+	 * @param httpClient 共用的http客户端，用于流式上传图片
+	 * @param meterRegistry 用于统计上传缓存的命中情况和熔断器状态
+	 */
+	public DiscordServiceImpl(ProxyProperties.DiscordAccountConfig account, ProxyProperties.DiscordConfig discord,
+			RestTemplate restTemplate, OkHttpClient httpClient, MeterRegistry meterRegistry) {
+		this.restTemplate = restTemplate;
+		this.httpClient = httpClient;
+		this.uploadCache = CacheUtil.newLRUCache(1024, discord.getUploadCacheTimeout().toMillis());
+		this.uploadCacheHits = Counter.builder("mj.describe.upload.cache").tag("result", "hit")
+				.tag("account", account.getChannelId()).description("图生文上传图片的缓存命中次数").register(meterRegistry);
+		this.uploadCacheMisses = Counter.builder("mj.describe.upload.cache").tag("result", "miss")
+				.tag("account", account.getChannelId()).description("图生文上传图片的缓存未命中次数").register(meterRegistry);
+		for (CircuitBreaker breaker : new CircuitBreaker[]{this.interactionsBreaker, this.attachmentsBreaker, this.uploadBreaker}) {
+			Gauge.builder("mj.discord.circuit.state", breaker, b -> b.getState().ordinal())
+					.tag("account", account.getChannelId()).tag("endpoint", breaker.getName())
+					.description("discord接口的熔断器状态: 0关闭, 1半开, 2打开").register(meterRegistry);
+		}
+		this.discordUserToken = account.getUserToken();
+		this.discordChannelId = account.getChannelId();
 		this.discordUploadUrl = "https://discord.com/api/v9/channels/" + this.discordChannelId + "/attachments";
-		this.userAgent = this.properties.getDiscord().getUserAgent();
-		this.imagineParamsJson = ResourceUtil.readUtf8Str("api-params/imagine.json");
-		this.upscaleParamsJson = ResourceUtil.readUtf8Str("api-params/upscale.json");
-		this.variationParamsJson = ResourceUtil.readUtf8Str("api-params/variation.json");
-		this.resetParamsJson = ResourceUtil.readUtf8Str("api-params/reset.json");
-		this.describeParamsJson = ResourceUtil.readUtf8Str("api-params/describe.json");
+		this.userAgent = CharSequenceUtil.isBlank(account.getUserAgent()) ? discord.getUserAgent() : account.getUserAgent();
+		Map<String, String> accountValues = Map.of("guild_id", account.getGuildId(), "channel_id", account.getChannelId());
+		this.imagineTemplate = compileTemplate("api-params/imagine.json", accountValues);
+		this.upscaleTemplate = compileTemplate("api-params/upscale.json", accountValues);
+		this.variationTemplate = compileTemplate("api-params/variation.json", accountValues);
+		this.resetTemplate = compileTemplate("api-params/reset.json", accountValues);
+		this.describeTemplate = compileTemplate("api-params/describe.json", accountValues);
+	}
+
+	private static PayloadTemplate compileTemplate(String path, Map<String, String> accountValues) {
+		return PayloadTemplate.compile(ResourceUtil.readUtf8Str(path)).bind(accountValues);
 	}
 
 	/**
@@ -72,12 +155,7 @@ public class DiscordServiceImpl implements DiscordService {
 	 */
 	@Override
 	public Message<Void> imagine(String prompt) {
-		String paramsStr = this.imagineParamsJson.replace("$guild_id", this.discordGuildId)
-				.replace("$channel_id", this.discordChannelId);
-		JSONObject params = new JSONObject(paramsStr);
-		params.getJSONObject("data").getJSONArray("options").getJSONObject(0)
-				.put("value", prompt);
-		return postJsonAndCheckStatus(params.toString());
+		return postJsonAndCheckStatus(this.imagineTemplate.render(Map.of("prompt", prompt)));
 	}
 
 	/**
@@ -90,12 +168,8 @@ public class DiscordServiceImpl implements DiscordService {
 	 */
 	@Override
 	public Message<Void> upscale(String messageId, int index, String messageHash) {
-		String paramsStr = this.upscaleParamsJson.replace("$guild_id", this.discordGuildId)
-				.replace("$channel_id", this.discordChannelId)
-				.replace("$message_id", messageId)
-				.replace("$index", String.valueOf(index))
-				.replace("$message_hash", messageHash);
-		return postJsonAndCheckStatus(paramsStr);
+		return postJsonAndCheckStatus(this.upscaleTemplate.render(Map.of("message_id", messageId,
+				"index", String.valueOf(index), "message_hash", messageHash)));
 	}
 
 	/**
@@ -107,12 +181,8 @@ public class DiscordServiceImpl implements DiscordService {
 	 */
 	@Override
 	public Message<Void> variation(String messageId, int index, String messageHash) {
-		String paramsStr = this.variationParamsJson.replace("$guild_id", this.discordGuildId)
-				.replace("$channel_id", this.discordChannelId)
-				.replace("$message_id", messageId)
-				.replace("$index", String.valueOf(index))
-				.replace("$message_hash", messageHash);
-		return postJsonAndCheckStatus(paramsStr);
+		return postJsonAndCheckStatus(this.variationTemplate.render(Map.of("message_id", messageId,
+				"index", String.valueOf(index), "message_hash", messageHash)));
 	}
 
 	/**
@@ -123,30 +193,40 @@ public class DiscordServiceImpl implements DiscordService {
 	 */
 	@Override
 	public Message<Void> reset(String messageId, String messageHash) {
-		String paramsStr = this.resetParamsJson.replace("$guild_id", this.discordGuildId)
-				.replace("$channel_id", this.discordChannelId)
-				.replace("$message_id", messageId)
-				.replace("$message_hash", messageHash);
-		return postJsonAndCheckStatus(paramsStr);
+		return postJsonAndCheckStatus(this.resetTemplate.render(Map.of("message_id", messageId, "message_hash", messageHash)));
 	}
 
 	/**
-	 * upload(String fileName, DataUrl dataUrl): 这个方法接收一个文件名和一个包含文件数据的 DataUrl。然后，它将文件上传到 Discord。
-	 * 如果上传成功，它会返回一个包含上传文件名的成功消息，否则它将返回一个错误消息。
+	 * upload(String fileName, String mimeType, Resource image): 这个方法接收一个文件名、文件类型和图片数据。然后，它将文件上传到 Discord。
+	 * 如果上传成功，它会返回一个包含上传文件名的成功消息，否则它将返回一个错误消息。相同内容的图片在缓存有效期内直接返回之前上传的文件名，
+	 * 并在消息中带上属性 cached=true，附件在discord上已失效时调用方可以在describe失败后重新上传。
 	 * @param fileName
-	 * @param dataUrl
+	 * @param mimeType
+	 * @param image 图片数据，需要能提供长度，可以多次打开
 	 * @return
+	 * @throws RetryLaterException 被限流，需要等待后重新上传
 	 */
 	@Override
-	public Message<String> upload(String fileName, DataUrl dataUrl) {
+	public Message<String> upload(String fileName, String mimeType, Resource image) {
 		try {
+			String contentHash;
+			try (InputStream inputStream = image.getInputStream()) {
+				contentHash = DigestUtil.sha256Hex(inputStream);
+			}
+			String cachedFilename = this.uploadCache.get(contentHash);
+			if (cachedFilename != null) {
+				this.uploadCacheHits.increment();
+				return Message.success(cachedFilename).setProperty("cached", true);
+			}
+			this.uploadCacheMisses.increment();
 			JSONObject fileObj = new JSONObject();
 			fileObj.put("filename", fileName);
-			fileObj.put("file_size", dataUrl.getData().length);
+			fileObj.put("file_size", image.contentLength());
 			fileObj.put("id", "0");
 			JSONObject params = new JSONObject()
 					.put("files", new JSONArray().put(fileObj));
-			ResponseEntity<String> responseEntity = postJson(this.discordUploadUrl, params.toString());
+			ResponseEntity<String> responseEntity = execute(this.attachmentsBreaker, "POST /channels/attachments", true,
+					() -> postJson(this.discordUploadUrl, params.toString().getBytes(StandardCharsets.UTF_8)));
 			if (responseEntity.getStatusCode() != HttpStatus.OK) {
 				log.error("上传图片到discord失败, status: {}, msg: {}", responseEntity.getStatusCodeValue(), responseEntity.getBody());
 				return Message.of(Message.VALIDATION_ERROR_CODE, "上传图片到discord失败");
@@ -157,8 +237,11 @@ public class DiscordServiceImpl implements DiscordService {
 			}
 			String uploadUrl = array.getJSONObject(0).getString("upload_url");
 			String uploadFilename = array.getJSONObject(0).getString("upload_filename");
-			putFile(uploadUrl, dataUrl);
+			putFile(uploadUrl, mimeType, image);
+			this.uploadCache.put(contentHash, uploadFilename);
 			return Message.success(uploadFilename);
+		} catch (RetryLaterException e) {
+			throw e;
 		} catch (Exception e) {
 			log.error("上传图片到discord失败", e);
 			return Message.of(Message.FAILURE_CODE, "上传图片到discord失败");
@@ -173,46 +256,186 @@ public class DiscordServiceImpl implements DiscordService {
 	@Override
 	public Message<Void> describe(String finalFileName) {
 		String fileName = CharSequenceUtil.subAfter(finalFileName, "/", true);
-		String paramsStr = this.describeParamsJson.replace("$guild_id", this.discordGuildId)
-				.replace("$channel_id", this.discordChannelId)
-				.replace("$file_name", fileName)
-				.replace("$final_file_name", finalFileName);
-		return postJsonAndCheckStatus(paramsStr);
+		Message<Void> result = postJsonAndCheckStatus(this.describeTemplate.render(Map.of("file_name", fileName, "final_file_name", finalFileName)));
+		if (result.getCode() != Message.SUCCESS_CODE) {
+			// 附件可能已经失效，不再复用
+			evictUpload(finalFileName);
+		}
+		return result;
+	}
+
+	private void evictUpload(String uploadFilename) {
+		Iterator<CacheObj<String, String>> iterator = this.uploadCache.cacheObjIterator();
+		while (iterator.hasNext()) {
+			CacheObj<String, String> cacheObj = iterator.next();
+			if (uploadFilename.equals(cacheObj.getValue())) {
+				this.uploadCache.remove(cacheObj.getKey());
+			}
+		}
 	}
 
 	/**
-	 * putFile(String uploadUrl, DataUrl dataUrl): 这个私有方法接收一个上传 URL 和一个包含文件数据的 DataUrl，然后使用 RESTful API 将文件数据上传到给定的 URL。
+	 * putFile(String uploadUrl, String mimeType, Resource image): 这个私有方法接收一个上传 URL 和图片数据，然后将图片数据上传到给定的 URL。
+	 * 请求体按已知长度从图片数据流式写出，不会把整个文件读入内存；RestTemplate会先缓冲整个请求体，所以这里直接使用OkHttp。
 	 * @param uploadUrl
-	 * @param dataUrl
+	 * @param mimeType
+	 * @param image
 	 */
-	private void putFile(String uploadUrl, DataUrl dataUrl) {
-		HttpHeaders headers = new HttpHeaders();
-		headers.add("User-Agent", this.userAgent);
-		headers.setContentType(MediaType.valueOf(dataUrl.getMimeType()));
-		headers.setContentLength(dataUrl.getData().length);
-		HttpEntity<byte[]> requestEntity = new HttpEntity<>(dataUrl.getData(), headers);
-		new RestTemplate().put(uploadUrl, requestEntity);
+	private void putFile(String uploadUrl, String mimeType, Resource image) {
+		RequestBody body = new RequestBody() {
+			@Override
+			public okhttp3.MediaType contentType() {
+				return okhttp3.MediaType.parse(mimeType);
+			}
+
+			@Override
+			public long contentLength() throws IOException {
+				return image.contentLength();
+			}
+
+			@Override
+			public void writeTo(BufferedSink sink) throws IOException {
+				try (Source source = Okio.source(image.getInputStream())) {
+					sink.writeAll(source);
+				}
+			}
+		};
+		Request request = new Request.Builder().url(uploadUrl).header("User-Agent", this.userAgent).put(body).build();
+		execute(this.uploadBreaker, "PUT upload", true, () -> execute(request));
+	}
+
+	/**
+	 * 交互接口熔断后是否正在试探恢复(半开).
+	 * @return
+	 */
+	@Override
+	public boolean isRecovering() {
+		return this.interactionsBreaker.getState() == CircuitBreaker.State.HALF_OPEN;
+	}
+
+	/**
+	 * 交互接口熔断时距离允许试探还有多少毫秒，被限流时距离限流桶重置还有多少毫秒.
+	 * @return
+	 */
+	@Override
+	public long unavailableMillis() {
+		return Math.max(this.interactionsBreaker.remainingOpenMillis(), this.rateLimiter.waitMillis(INTERACTIONS_ROUTE));
+	}
+
+	/**
+	 * 经过熔断器和限流调度器执行请求，discord不可用时按指数退避加随机抖动(full jitter)计算重试的等待时间，抛出 RetryLaterException，
+	 * 由任务派发在时间轮上到期后重新提交并限制重试次数，请求线程不等待. 退避的指数取接口当前的连续失败次数，熔断器因此打开时等待到允许试探.
+	 * @param breaker 接口的熔断器
+	 * @param route 限流调度器的接口
+	 * @param idempotent 请求是否幂等，非幂等的请求只重试确定没有被处理的失败
+	 * @param request 实际的请求
+	 * @return
+	 * @throws RetryLaterException 被限流或可以重试的失败，需要等待后重试
+	 */
+	private <T> ResponseEntity<T> execute(CircuitBreaker breaker, String route, boolean idempotent, Supplier<ResponseEntity<T>> request) {
+		if (!breaker.tryAcquire()) {
+			throw new CircuitBreaker.OpenException(breaker.getName(), Math.max(breaker.remainingOpenMillis(), PROBE_WAIT_MILLIS));
+		}
+		try {
+			ResponseEntity<T> response = this.rateLimiter.execute(route, request);
+			breaker.onSuccess();
+			return response;
+		} catch (RetryLaterException e) {
+			// 没有发出的请求不影响熔断状态，限流(429)说明discord正常工作
+			if (e.isAttempted()) {
+				breaker.onIgnored();
+			} else {
+				breaker.onCancelled();
+			}
+			throw e;
+		} catch (RestClientException e) {
+			if (!isUnavailable(e)) {
+				breaker.onIgnored();
+				throw e;
+			}
+			breaker.onFailure();
+			if (!isRetryable(e, idempotent)) {
+				throw e;
+			}
+			long backoff = breaker.remainingOpenMillis();
+			if (backoff == 0) {
+				int shift = Math.min(Math.max(breaker.getConsecutiveFailures() - 1, 0), BACKOFF_MAX_SHIFT);
+				backoff = ThreadLocalRandom.current().nextLong(BACKOFF_BASE_MILLIS << shift) + 1;
+			}
+			log.warn("discord request failed, route: {}, retry after {}ms, {}", route, backoff, e.getMessage());
+			throw new RetryLaterException(backoff, e);
+		}
+	}
+
+	/**
+	 * 是否是discord不可用导致的失败：5xx或网络错误. 4xx和限流说明discord正常工作，不计入熔断.
+	 */
+	private static boolean isUnavailable(RestClientException e) {
+		return e instanceof HttpServerErrorException || e instanceof ResourceAccessException;
+	}
+
+	/**
+	 * 是否可以重试：幂等的请求在discord不可用时都可以重试；非幂等的请求只在连接没有建立(请求没有发出)或503时重试，
+	 * 读超时、502、504时请求可能已经被处理，重试会重复提交.
+	 */
+	private static boolean isRetryable(RestClientException e, boolean idempotent) {
+		if (idempotent) {
+			return true;
+		}
+		if (e instanceof HttpServerErrorException.ServiceUnavailable) {
+			return true;
+		}
+		Throwable cause = e.getCause();
+		return e instanceof ResourceAccessException && (cause instanceof ConnectException
+				|| cause instanceof UnknownHostException || cause instanceof NoRouteToHostException);
+	}
+
+	/**
+	 * 执行OkHttp请求，转换为和RestTemplate一致的响应和异常，便于限流调度器处理.
+	 * @param request
+	 * @return
+	 */
+	private ResponseEntity<Void> execute(Request request) {
+		try (Response response = this.httpClient.newCall(request).execute()) {
+			HttpHeaders headers = new HttpHeaders();
+			response.headers().toMultimap().forEach(headers::addAll);
+			if (response.isSuccessful()) {
+				return ResponseEntity.status(response.code()).headers(headers).build();
+			}
+			ResponseBody responseBody = response.body();
+			byte[] body = responseBody == null ? new byte[0] : responseBody.bytes();
+			HttpStatus status = HttpStatus.resolve(response.code());
+			if (status == null) {
+				throw new UnknownHttpStatusCodeException(response.code(), response.message(), headers, body, StandardCharsets.UTF_8);
+			}
+			if (status.is4xxClientError()) {
+				throw HttpClientErrorException.create(status, response.message(), headers, body, StandardCharsets.UTF_8);
+			}
+			throw HttpServerErrorException.create(status, response.message(), headers, body, StandardCharsets.UTF_8);
+		} catch (IOException e) {
+			throw new ResourceAccessException("I/O error on " + request.method() + " request: " + e.getMessage(), e);
+		}
 	}
 
 	/*
 	
 	 */
-	private ResponseEntity<String> postJson(String paramsStr) {
-		return postJson(DISCORD_API_URL, paramsStr);
+	private ResponseEntity<String> postJson(byte[] params) {
+		return postJson(DISCORD_API_URL, params);
 	}
 
-	private ResponseEntity<String> postJson(String url, String paramsStr) {
+	private ResponseEntity<String> postJson(String url, byte[] params) {
 		HttpHeaders headers = new HttpHeaders();
 		headers.setContentType(MediaType.APPLICATION_JSON);
 		headers.set("Authorization", this.discordUserToken);
 		headers.add("User-Agent", this.userAgent);
-		HttpEntity<String> httpEntity = new HttpEntity<>(paramsStr, headers);
-		return new RestTemplate().postForEntity(url, httpEntity, String.class);
+		HttpEntity<byte[]> httpEntity = new HttpEntity<>(params, headers);
+		return this.restTemplate.postForEntity(url, httpEntity, String.class);
 	}
 
-	private Message<Void> postJsonAndCheckStatus(String paramsStr) {
+	private Message<Void> postJsonAndCheckStatus(byte[] params) {
 		try {
-			ResponseEntity<String> responseEntity = postJson(paramsStr);
+			ResponseEntity<String> responseEntity = execute(this.interactionsBreaker, INTERACTIONS_ROUTE, false, () -> postJson(params));
 			if (responseEntity.getStatusCode() == HttpStatus.NO_CONTENT) {
 				return Message.success();
 			}
@@ -224,6 +447,12 @@ public class DiscordServiceImpl implements DiscordService {
 			} catch (Exception je) {
 				return Message.of(e.getRawStatusCode(), CharSequenceUtil.sub(e.getMessage(), 0, 100));
 			}
+		} catch (HttpStatusCodeException e) {
+			log.error("提交交互到discord失败, status: {}", e.getRawStatusCode());
+			return Message.of(e.getRawStatusCode(), CharSequenceUtil.sub(e.getMessage(), 0, 100));
+		} catch (RestClientException e) {
+			log.error("提交交互到discord失败", e);
+			return Message.of(Message.FAILURE_CODE, "提交交互到discord失败: " + e.getMessage());
 		}
 	}
 }
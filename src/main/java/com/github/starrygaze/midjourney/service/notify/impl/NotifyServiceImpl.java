@@ -19,6 +19,8 @@ import org.springframework.web.client.RestTemplate;
 public class NotifyServiceImpl implements NotifyService {
 	private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
+	private final RestTemplate restTemplate;
+
 	/**
 	 * notifyTaskChange(Task task): 这个方法接收一个任务 (Task) 对象作为参数。首先，检查任务对象的 notifyHook 字段，如果为空，则直接返回。
 	 * 如果不为空，那么将任务对象序列化为 JSON 格式的字符串，并打印一条调试信息。然后，调用 postJson 方法将任务对象的 JSON 字符串通过 HTTP POST 方法发送到 notifyHook 指定的 URL。
@@ -51,7 +53,7 @@ public class NotifyServiceImpl implements NotifyService {
 		HttpHeaders headers = new HttpHeaders();
 		headers.setContentType(MediaType.APPLICATION_JSON);
 		HttpEntity<String> httpEntity = new HttpEntity<>(paramsJson, headers);
-		ResponseEntity<String> responseEntity = new RestTemplate().postForEntity(notifyHook, httpEntity, String.class);
+		ResponseEntity<String> responseEntity = this.restTemplate.postForEntity(notifyHook, httpEntity, String.class);
 		if (responseEntity.getStatusCode() == HttpStatus.OK) {
 			return;
 		}
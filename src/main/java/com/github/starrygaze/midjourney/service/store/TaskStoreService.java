@@ -1,17 +1,48 @@
 package com.github.starrygaze.midjourney.service.store;
 
 import com.github.starrygaze.midjourney.entity.Task;
+import com.github.starrygaze.midjourney.enums.TaskStatus;
 
+import java.time.Duration;
+import java.util.Collection;
 import java.util.List;
 
 public interface TaskStoreService {
 
 	void saveTask(Task task);
 
+	/**
+	 * 批量保存任务，支持的存储在一次往返中写入.
+	 */
+	default void saveTasks(Collection<Task> tasks) {
+		tasks.forEach(this::saveTask);
+	}
+
 	void deleteTask(String id);
 
 	Task getTask(String id);
 
 	List<Task> listTask();
 
+	/**
+	 * 按提交时间倒序分页查询任务，提交时间相同的任务按ID倒序.
+	 * 游标由上一页最后一个任务的提交时间和ID组成，只返回排在它之后的任务，同一毫秒提交的任务跨页时不会丢失.
+	 *
+	 * @param status 只查询该状态的任务，为null时查询全部
+	 * @param before 游标的提交时间，为null时从最新的开始
+	 * @param beforeId 游标的任务ID，为null时只返回提交时间早于before的任务
+	 * @param limit 最多返回的任务数，小于等于0时不限制
+	 * @return
+	 */
+	List<Task> listTask(TaskStatus status, Long before, String beforeId, int limit);
+
+	/**
+	 * 绑定幂等键和任务ID，幂等键已存在时不覆盖.
+	 *
+	 * @return 已绑定的任务ID，绑定成功时返回null
+	 */
+	String bindIdempotencyKey(String key, String taskId, Duration timeout);
+
+	void unbindIdempotencyKey(String key);
+
 }
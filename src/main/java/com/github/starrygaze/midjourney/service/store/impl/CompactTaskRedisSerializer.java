@@ -0,0 +1,294 @@
+package com.github.starrygaze.midjourney.service.store.impl;
+
+import com.github.starrygaze.midjourney.entity.Task;
+import com.github.starrygaze.midjourney.enums.Action;
+import com.github.starrygaze.midjourney.enums.TaskStatus;
+import org.springframework.data.redis.serializer.JdkSerializationRedisSerializer;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.data.redis.serializer.SerializationException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * CompactTaskRedisSerializer 是 Task 的紧凑二进制编码，用于Redis存储，体积和编解码开销都远小于JDK序列化。
+ *
+ * 格式：2字节魔数、1字节版本号，之后是若干字段，每个字段以 (字段编号 &lt;&lt; 3 | 类型) 的varint开头，
+ * 类型0是varint(数字、时间、枚举)，类型2是长度加UTF-8内容(字符串)，值为null的字段不写；类型1、5预留给8字节、4字节的定长字段。
+ * 解码时按类型的长度跳过不认识的字段，字段只增不改编号，新旧版本的数据可以互相读取。枚举按下面固定的编码存储，不依赖枚举的名称和顺序，不认识的编码读为null。
+ * 版本号只在格式不兼容时增加，读到其他版本的数据时明确报错，而不是按当前格式解析出错误的任务。
+ * 不是以魔数开头的数据按JDK序列化读取，兼容切换前已经写入的任务。
+ */
+public class CompactTaskRedisSerializer implements RedisSerializer<Task> {
+	private static final byte MAGIC_0 = 'M';
+	private static final byte MAGIC_1 = 'T';
+	private static final byte VERSION = 1;
+
+	private static final int VARINT = 0;
+	private static final int FIXED64 = 1;
+	private static final int BYTES = 2;
+	private static final int FIXED32 = 5;
+
+	private static final int ACTION = 1;
+	private static final int ID = 2;
+	private static final int PROMPT = 3;
+	private static final int PROMPT_EN = 4;
+	private static final int DESCRIPTION = 5;
+	private static final int STATE = 6;
+	private static final int SUBMIT_TIME = 7;
+	private static final int START_TIME = 8;
+	private static final int FINISH_TIME = 9;
+	private static final int IMAGE_URL = 10;
+	private static final int STATUS = 11;
+	private static final int FAIL_REASON = 12;
+	private static final int KEY = 13;
+	private static final int FINAL_PROMPT = 14;
+	private static final int NOTIFY_HOOK = 15;
+	private static final int RELATED_TASK_ID = 16;
+	private static final int MESSAGE_ID = 17;
+	private static final int MESSAGE_HASH = 18;
+	private static final int CALLER_ID = 19;
+	private static final int CHANNEL_ID = 20;
+	private static final int PROGRESS = 21;
+	private static final int PREVIEW_IMAGE_URL = 22;
+
+	private final JdkSerializationRedisSerializer fallback = new JdkSerializationRedisSerializer();
+
+	@Override
+	public byte[] serialize(Task task) throws SerializationException {
+		if (task == null) {
+			return new byte[0];
+		}
+		Writer writer = new Writer();
+		writer.buf[writer.len++] = MAGIC_0;
+		writer.buf[writer.len++] = MAGIC_1;
+		writer.buf[writer.len++] = VERSION;
+		writer.writeNumber(ACTION, actionCode(task.getAction()));
+		writer.writeString(ID, task.getId());
+		writer.writeString(PROMPT, task.getPrompt());
+		writer.writeString(PROMPT_EN, task.getPromptEn());
+		writer.writeString(DESCRIPTION, task.getDescription());
+		writer.writeString(STATE, task.getState());
+		writer.writeNumber(SUBMIT_TIME, task.getSubmitTime());
+		writer.writeNumber(START_TIME, task.getStartTime());
+		writer.writeNumber(FINISH_TIME, task.getFinishTime());
+		writer.writeString(IMAGE_URL, task.getImageUrl());
+		writer.writeNumber(STATUS, statusCode(task.getStatus()));
+		writer.writeString(FAIL_REASON, task.getFailReason());
+		writer.writeString(KEY, task.getKey());
+		writer.writeString(FINAL_PROMPT, task.getFinalPrompt());
+		writer.writeString(NOTIFY_HOOK, task.getNotifyHook());
+		writer.writeString(RELATED_TASK_ID, task.getRelatedTaskId());
+		writer.writeString(MESSAGE_ID, task.getMessageId());
+		writer.writeString(MESSAGE_HASH, task.getMessageHash());
+		writer.writeString(CALLER_ID, task.getCallerId());
+		writer.writeString(CHANNEL_ID, task.getChannelId());
+		writer.writeNumber(PROGRESS, task.getProgress() == null ? null : task.getProgress().longValue());
+		writer.writeString(PREVIEW_IMAGE_URL, task.getPreviewImageUrl());
+		return Arrays.copyOf(writer.buf, writer.len);
+	}
+
+	@Override
+	public Task deserialize(byte[] bytes) throws SerializationException {
+		if (bytes == null || bytes.length == 0) {
+			return null;
+		}
+		if (bytes.length < 3 || bytes[0] != MAGIC_0 || bytes[1] != MAGIC_1) {
+			return (Task) this.fallback.deserialize(bytes);
+		}
+		if (bytes[2] != VERSION) {
+			throw new SerializationException("unsupported task data version: " + bytes[2] + ", expected: " + VERSION);
+		}
+		Reader reader = new Reader(bytes, 3);
+		Task task = new Task();
+		task.setStatus(null);
+		try {
+			while (reader.pos < bytes.length) {
+				int tag = (int) reader.readVarint();
+				int field = tag >>> 3;
+				int type = tag & 0x7;
+				if (type == VARINT) {
+					long value = reader.readVarint();
+					switch (field) {
+						case ACTION -> task.setAction(action(value));
+						case SUBMIT_TIME -> task.setSubmitTime(value);
+						case START_TIME -> task.setStartTime(value);
+						case FINISH_TIME -> task.setFinishTime(value);
+						case STATUS -> task.setStatus(status(value));
+						case PROGRESS -> task.setProgress((int) value);
+						default -> {
+							// 新版本增加的字段
+						}
+					}
+				} else if (type == BYTES) {
+					if (field < ID || field > PREVIEW_IMAGE_URL) {
+						// 新版本增加的字段
+						reader.skip((int) reader.readVarint());
+						continue;
+					}
+					String value = reader.readString();
+					switch (field) {
+						case ID -> task.setId(value);
+						case PROMPT -> task.setPrompt(value);
+						case PROMPT_EN -> task.setPromptEn(value);
+						case DESCRIPTION -> task.setDescription(value);
+						case STATE -> task.setState(value);
+						case IMAGE_URL -> task.setImageUrl(value);
+						case FAIL_REASON -> task.setFailReason(value);
+						case KEY -> task.setKey(value);
+						case FINAL_PROMPT -> task.setFinalPrompt(value);
+						case NOTIFY_HOOK -> task.setNotifyHook(value);
+						case RELATED_TASK_ID -> task.setRelatedTaskId(value);
+						case MESSAGE_ID -> task.setMessageId(value);
+						case MESSAGE_HASH -> task.setMessageHash(value);
+						case CALLER_ID -> task.setCallerId(value);
+						case CHANNEL_ID -> task.setChannelId(value);
+						case PREVIEW_IMAGE_URL -> task.setPreviewImageUrl(value);
+						default -> {
+							// 新版本增加的字段
+						}
+					}
+				} else if (type == FIXED64) {
+					reader.skip(8);
+				} else if (type == FIXED32) {
+					reader.skip(4);
+				} else {
+					throw new SerializationException("unsupported field type: " + type + ", field: " + field);
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new SerializationException("truncated task data", e);
+		}
+		return task;
+	}
+
+	private static Long actionCode(Action action) {
+		if (action == null) {
+			return null;
+		}
+		return switch (action) {
+			case IMAGINE -> 1L;
+			case UPSCALE -> 2L;
+			case VARIATION -> 3L;
+			case RESET -> 4L;
+			case DESCRIBE -> 5L;
+		};
+	}
+
+	private static Action action(long code) {
+		return switch ((int) code) {
+			case 1 -> Action.IMAGINE;
+			case 2 -> Action.UPSCALE;
+			case 3 -> Action.VARIATION;
+			case 4 -> Action.RESET;
+			case 5 -> Action.DESCRIBE;
+			default -> null;
+		};
+	}
+
+	private static Long statusCode(TaskStatus status) {
+		if (status == null) {
+			return null;
+		}
+		return switch (status) {
+			case NOT_START -> 1L;
+			case SUBMITTED -> 2L;
+			case IN_PROGRESS -> 3L;
+			case FAILURE -> 4L;
+			case SUCCESS -> 5L;
+		};
+	}
+
+	private static TaskStatus status(long code) {
+		return switch ((int) code) {
+			case 1 -> TaskStatus.NOT_START;
+			case 2 -> TaskStatus.SUBMITTED;
+			case 3 -> TaskStatus.IN_PROGRESS;
+			case 4 -> TaskStatus.FAILURE;
+			case 5 -> TaskStatus.SUCCESS;
+			default -> null;
+		};
+	}
+
+	private static final class Writer {
+		private byte[] buf = new byte[256];
+		private int len;
+
+		void writeNumber(int field, Long value) {
+			if (value == null) {
+				return;
+			}
+			writeVarint((long) field << 3 | VARINT);
+			writeVarint(value);
+		}
+
+		void writeString(int field, String value) {
+			if (value == null) {
+				return;
+			}
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			writeVarint((long) field << 3 | BYTES);
+			writeVarint(bytes.length);
+			ensure(bytes.length);
+			System.arraycopy(bytes, 0, this.buf, this.len, bytes.length);
+			this.len += bytes.length;
+		}
+
+		void writeVarint(long value) {
+			ensure(10);
+			while ((value & ~0x7FL) != 0) {
+				this.buf[this.len++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			this.buf[this.len++] = (byte) value;
+		}
+
+		private void ensure(int extra) {
+			if (this.len + extra > this.buf.length) {
+				this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length * 2, this.len + extra));
+			}
+		}
+	}
+
+	private static final class Reader {
+		private final byte[] buf;
+		private int pos;
+
+		Reader(byte[] buf, int pos) {
+			this.buf = buf;
+			this.pos = pos;
+		}
+
+		long readVarint() {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				byte b = this.buf[this.pos++];
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new SerializationException("malformed varint");
+		}
+
+		String readString() {
+			int length = (int) readVarint();
+			check(length);
+			String value = new String(this.buf, this.pos, length, StandardCharsets.UTF_8);
+			this.pos += length;
+			return value;
+		}
+
+		void skip(int length) {
+			check(length);
+			this.pos += length;
+		}
+
+		private void check(int length) {
+			if (length < 0 || this.pos + length > this.buf.length) {
+				throw new SerializationException("truncated task data");
+			}
+		}
+	}
+
+}
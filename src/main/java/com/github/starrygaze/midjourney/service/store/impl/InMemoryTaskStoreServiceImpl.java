@@ -5,9 +5,12 @@ import cn.hutool.cache.impl.TimedCache;
 import cn.hutool.core.collection.ListUtil;
 import com.github.starrygaze.midjourney.service.store.TaskStoreService;
 import com.github.starrygaze.midjourney.entity.Task;
+import com.github.starrygaze.midjourney.enums.TaskStatus;
 
 import java.time.Duration;
+import java.util.Comparator;
 import java.util.List;
+import java.util.stream.Stream;
 
 /**
  * 这个类叫做 InMemoryTaskStoreServiceImpl，它是 TaskStoreService 接口的实现类。
@@ -20,8 +23,14 @@ public class InMemoryTaskStoreServiceImpl implements TaskStoreService {
 	 */
 	private final TimedCache<String, Task> taskMap;
 
+	/**
+	 * 幂等键 -> 任务ID，每条记录有自己的过期时间
+	 */
+	private final TimedCache<String, String> idempotencyKeyMap;
+
 	public InMemoryTaskStoreServiceImpl(Duration timeout) {
 		this.taskMap = CacheUtil.newTimedCache(timeout.toMillis());
+		this.idempotencyKeyMap = CacheUtil.newTimedCache(timeout.toMillis());
 	}
 
 	/**
@@ -61,4 +70,48 @@ public class InMemoryTaskStoreServiceImpl implements TaskStoreService {
 		return ListUtil.toList(this.taskMap.iterator());
 	}
 
+	/**
+	 * listTask(TaskStatus status, Long before, String beforeId, int limit)：按条件过滤缓存中的任务，按提交时间、ID倒序返回.
+	 * @param status
+	 * @param before
+	 * @param beforeId
+	 * @param limit
+	 * @return
+	 */
+	@Override
+	public List<Task> listTask(TaskStatus status, Long before, String beforeId, int limit) {
+		Stream<Task> stream = listTask().stream()
+				.filter(task -> status == null || status == task.getStatus())
+				.filter(task -> before == null || submitTime(task) < before
+						|| beforeId != null && submitTime(task) == before && task.getId().compareTo(beforeId) < 0)
+				.sorted(Comparator.comparingLong(InMemoryTaskStoreServiceImpl::submitTime).thenComparing(Task::getId).reversed());
+		return (limit > 0 ? stream.limit(limit) : stream).toList();
+	}
+
+	private static long submitTime(Task task) {
+		return task.getSubmitTime() == null ? 0 : task.getSubmitTime();
+	}
+
+	/**
+	 * bindIdempotencyKey：幂等键未绑定(或已过期)时绑定到任务ID，否则返回已绑定的任务ID。
+	 * @param key
+	 * @param taskId
+	 * @param timeout
+	 * @return
+	 */
+	@Override
+	public synchronized String bindIdempotencyKey(String key, String taskId, Duration timeout) {
+		String existing = this.idempotencyKeyMap.get(key, false);
+		if (existing != null) {
+			return existing;
+		}
+		this.idempotencyKeyMap.put(key, taskId, timeout.toMillis());
+		return null;
+	}
+
+	@Override
+	public synchronized void unbindIdempotencyKey(String key) {
+		this.idempotencyKeyMap.remove(key);
+	}
+
 }
@@ -0,0 +1,148 @@
+package com.github.starrygaze.midjourney.service.store.impl;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.core.util.IdUtil;
+import com.github.starrygaze.midjourney.entity.Task;
+import com.github.starrygaze.midjourney.enums.TaskStatus;
+import com.github.starrygaze.midjourney.service.store.TaskStoreService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * NearCacheTaskStoreServiceImpl 是放在Redis任务存储前面的本地缓存：按任务ID缓存读取到的任务，容量有上限，按最近使用淘汰。
+ * 执行中的任务缓存时间短，已结束的任务不会再变化，缓存时间长。
+ *
+ * 本节点保存或删除任务时同步更新本地缓存，并通过Redis的发布订阅广播失效消息，其他节点收到后删除自己缓存中的这些任务，
+ * 多个代理节点共用一个Redis时也能读到最新的任务。失效消息的格式为 "节点id:任务id,任务id"，节点忽略自己发出的消息。
+ */
+@Slf4j
+public class NearCacheTaskStoreServiceImpl implements TaskStoreService, DisposableBean {
+	private static final String INVALIDATION_CHANNEL = "mj-task-invalidation";
+
+	private final TaskStoreService delegate;
+	private final RedisTemplate<String, Task> redisTemplate;
+	private final LRUCache<String, Task> cache;
+	private final long runningTtlMillis;
+	private final long finishedTtlMillis;
+	private final String nodeId = IdUtil.fastSimpleUUID();
+	private final RedisMessageListenerContainer listenerContainer;
+
+	public NearCacheTaskStoreServiceImpl(TaskStoreService delegate, RedisTemplate<String, Task> redisTemplate,
+			RedisConnectionFactory connectionFactory, int capacity, Duration runningTtl, Duration finishedTtl) {
+		this.delegate = delegate;
+		this.redisTemplate = redisTemplate;
+		this.cache = CacheUtil.newLRUCache(capacity, runningTtl.toMillis());
+		this.runningTtlMillis = runningTtl.toMillis();
+		this.finishedTtlMillis = finishedTtl.toMillis();
+		this.listenerContainer = new RedisMessageListenerContainer();
+		this.listenerContainer.setConnectionFactory(connectionFactory);
+		this.listenerContainer.addMessageListener((message, pattern) -> onInvalidation(message),
+				new ChannelTopic(INVALIDATION_CHANNEL));
+		this.listenerContainer.afterPropertiesSet();
+		this.listenerContainer.start();
+	}
+
+	@Override
+	public void saveTask(Task task) {
+		this.delegate.saveTask(task);
+		cache(task);
+		publishInvalidation(List.of(task.getId()));
+	}
+
+	@Override
+	public void saveTasks(Collection<Task> tasks) {
+		if (tasks.isEmpty()) {
+			return;
+		}
+		this.delegate.saveTasks(tasks);
+		tasks.forEach(this::cache);
+		publishInvalidation(tasks.stream().map(Task::getId).toList());
+	}
+
+	@Override
+	public void deleteTask(String id) {
+		this.delegate.deleteTask(id);
+		this.cache.remove(id);
+		publishInvalidation(List.of(id));
+	}
+
+	@Override
+	public Task getTask(String id) {
+		Task task = this.cache.get(id, false);
+		if (task != null) {
+			return task;
+		}
+		task = this.delegate.getTask(id);
+		if (task != null) {
+			cache(task);
+		}
+		return task;
+	}
+
+	@Override
+	public List<Task> listTask() {
+		return this.delegate.listTask();
+	}
+
+	@Override
+	public List<Task> listTask(TaskStatus status, Long before, String beforeId, int limit) {
+		return this.delegate.listTask(status, before, beforeId, limit);
+	}
+
+	@Override
+	public String bindIdempotencyKey(String key, String taskId, Duration timeout) {
+		return this.delegate.bindIdempotencyKey(key, taskId, timeout);
+	}
+
+	@Override
+	public void unbindIdempotencyKey(String key) {
+		this.delegate.unbindIdempotencyKey(key);
+	}
+
+	@Override
+	public void destroy() throws Exception {
+		this.listenerContainer.destroy();
+	}
+
+	private void cache(Task task) {
+		boolean finished = task.getStatus() == TaskStatus.SUCCESS || task.getStatus() == TaskStatus.FAILURE;
+		this.cache.put(task.getId(), task, finished ? this.finishedTtlMillis : this.runningTtlMillis);
+	}
+
+	private void publishInvalidation(List<String> ids) {
+		byte[] channel = INVALIDATION_CHANNEL.getBytes(StandardCharsets.UTF_8);
+		byte[] message = (this.nodeId + ":" + String.join(",", ids)).getBytes(StandardCharsets.UTF_8);
+		try {
+			this.redisTemplate.execute((RedisCallback<Long>) connection -> connection.publish(channel, message));
+		} catch (Exception e) {
+			log.warn("发布任务缓存失效消息失败: {}", e.getMessage());
+		}
+	}
+
+	private void onInvalidation(Message message) {
+		String body = new String(message.getBody(), StandardCharsets.UTF_8);
+		String sender = CharSequenceUtil.subBefore(body, ":", false);
+		if (this.nodeId.equals(sender)) {
+			return;
+		}
+		CharSequenceUtil.split(CharSequenceUtil.subAfter(body, ":", false), ",").stream()
+				.filter(CharSequenceUtil::isNotBlank)
+				.collect(Collectors.toSet())
+				.forEach(this.cache::remove);
+	}
+
+}
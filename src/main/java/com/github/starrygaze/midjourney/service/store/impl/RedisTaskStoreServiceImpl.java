@@ -1,21 +1,37 @@
 package com.github.starrygaze.midjourney.service.store.impl;
 
 import com.github.starrygaze.midjourney.entity.Task;
+import com.github.starrygaze.midjourney.enums.TaskStatus;
 import com.github.starrygaze.midjourney.service.store.TaskStoreService;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.RedisZSetCommands;
 import org.springframework.data.redis.core.*;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.serializer.RedisSerializer;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Duration;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.Objects;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * 这个类叫做 RedisTaskStoreServiceImpl，它是 TaskStoreService 接口的实现类。从名字中可以看出，这个服务的实现是基于Redis的，Redis是一种高效的键值对数据库，支持持久化数据。
+ *
+ * 除了每个任务的值，还维护按提交时间排序的索引：一个包含所有任务的有序集合和每个状态一个有序集合，分数是提交时间，成员是任务ID。
+ * 查询列表时按分数倒序范围查询索引，再用 MGET 分批取回任务，不再 SCAN 全部键后逐个 GET。任务的值过期后，索引中残留的ID在查询时清理。
  */
 public class RedisTaskStoreServiceImpl implements TaskStoreService {
 	private static final String KEY_PREFIX = "mj-task::";
+	private static final String INDEX_KEY = "mj-task-index";
+	private static final String STATUS_INDEX_KEY_PREFIX = "mj-task-index::";
+	private static final String IDEMPOTENCY_KEY_PREFIX = "mj-idempotency::";
+	/**
+	 * 每次 MGET 取回的任务数
+	 */
+	private static final int FETCH_CHUNK_SIZE = 200;
 
 	private final Duration timeout;
 
@@ -35,25 +51,63 @@ public class RedisTaskStoreServiceImpl implements TaskStoreService {
 	}
 
 	/**
-	 * deleteTask(String id)：这个方法用来从Redis中删除一个任务。需要提供的参数是任务的ID。
+	 * saveTask(Task task)：在一个管道中保存任务的值，并更新全部任务的索引和状态索引，任务只出现在当前状态的索引中。
 	 * @param task
 	 */
 	@Override
 	public void saveTask(Task task) {
-		this.redisTemplate.opsForValue().set(getRedisKey(task.getId()), task, this.timeout);
+		saveTasks(List.of(task));
 	}
 
 	/**
-	 * getTask(String id)：这个方法用来从Redis中获取一个任务。需要提供的参数是任务的ID。
+	 * saveTasks(Collection tasks)：在一个管道中保存多个任务及其索引.
+	 * @param tasks
+	 */
+	@Override
+	public void saveTasks(Collection<Task> tasks) {
+		if (tasks.isEmpty()) {
+			return;
+		}
+		RedisSerializer<Task> serializer = valueSerializer();
+		this.redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+			for (Task task : tasks) {
+				writeTask(connection, serializer, task);
+			}
+			return null;
+		});
+	}
+
+	private void writeTask(RedisConnection connection, RedisSerializer<Task> serializer, Task task) {
+		byte[] member = raw(task.getId());
+		double score = task.getSubmitTime() == null ? 0 : task.getSubmitTime();
+		connection.stringCommands().set(raw(getRedisKey(task.getId())), serializer.serialize(task),
+				Expiration.from(this.timeout), RedisStringCommands.SetOption.UPSERT);
+		connection.zSetCommands().zAdd(raw(INDEX_KEY), score, member);
+		for (TaskStatus status : TaskStatus.values()) {
+			if (status == task.getStatus()) {
+				connection.zSetCommands().zAdd(statusIndexKey(status), score, member);
+			} else {
+				connection.zSetCommands().zRem(statusIndexKey(status), member);
+			}
+		}
+	}
+
+	/**
+	 * deleteTask(String id)：这个方法用来从Redis中删除一个任务及其索引。需要提供的参数是任务的ID。
 	 * @param id
 	 */
 	@Override
 	public void deleteTask(String id) {
-		this.redisTemplate.delete(getRedisKey(id));
+		byte[] member = raw(id);
+		this.redisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+			connection.keyCommands().del(raw(getRedisKey(id)));
+			removeFromIndexes(connection, member);
+			return null;
+		});
 	}
 
 	/**
-	 * listTask()：这个方法返回Redis中所有的任务。首先通过执行一个Redis Scan命令来获取所有的键，然后取出对应的任务对象。
+	 * getTask(String id)：这个方法用来从Redis中获取一个任务。需要提供的参数是任务的ID。
 	 * @param id
 	 * @return
 	 */
@@ -63,26 +117,133 @@ public class RedisTaskStoreServiceImpl implements TaskStoreService {
 	}
 
 	/**
-	 * getRedisKey(String id)：这个辅助方法用于生成Redis的键，它将任务的ID添加到一个前缀后面。
+	 * listTask()：返回Redis中所有的任务，按提交时间倒序.
 	 * @return
 	 */
 	@Override
 	public List<Task> listTask() {
-		Set<String> keys = redisTemplate.execute((RedisCallback<Set<String>>) connection -> {
-			Cursor<byte[]> cursor = connection.scan(ScanOptions.scanOptions().match(KEY_PREFIX + "*").count(1000).build());
-			return cursor.stream().map(String::new).collect(Collectors.toSet());
+		return listTask(null, null, null, 0);
+	}
+
+	/**
+	 * listTask(TaskStatus status, Long before, String beforeId, int limit)：先清理索引中已超过有效期的ID，再按提交时间倒序分批范围查询索引，
+	 * 每批用一次 MGET 取回任务，直到取够 limit 个或索引查询完。值已经不存在的ID在查询完后才从索引中移除，
+	 * 查询过程中不修改索引，按偏移量分批时不会跳过后面的任务。
+	 * 分数相同的成员zset按成员倒序返回，和任务ID倒序一致：带beforeId时按分数小于等于before查询，跳过分数等于before且ID不小于beforeId的任务。
+	 * @param status
+	 * @param before
+	 * @param beforeId
+	 * @param limit
+	 * @return
+	 */
+	@Override
+	public List<Task> listTask(TaskStatus status, Long before, String beforeId, int limit) {
+		byte[] indexKey = status == null ? raw(INDEX_KEY) : statusIndexKey(status);
+		RedisZSetCommands.Range range = before == null ? RedisZSetCommands.Range.unbounded()
+				: beforeId == null ? RedisZSetCommands.Range.range().lt(before) : RedisZSetCommands.Range.range().lte(before);
+		RedisSerializer<Task> serializer = valueSerializer();
+		return this.redisTemplate.execute((RedisCallback<List<Task>>) connection -> {
+			trimExpired(connection);
+			List<Task> tasks = new ArrayList<>();
+			List<byte[]> danglingIds = new ArrayList<>();
+			int offset = 0;
+			while (limit <= 0 || tasks.size() < limit) {
+				int count = limit <= 0 ? FETCH_CHUNK_SIZE : Math.min(FETCH_CHUNK_SIZE, limit - tasks.size());
+				Set<RedisZSetCommands.Tuple> tuples = connection.zSetCommands().zRevRangeByScoreWithScores(indexKey, range,
+						RedisZSetCommands.Limit.limit().offset(offset).count(count));
+				if (tuples == null || tuples.isEmpty()) {
+					break;
+				}
+				offset += tuples.size();
+				List<byte[]> idList = tuples.stream()
+						.filter(tuple -> beforeId == null || tuple.getScore() < before
+								|| new String(tuple.getValue(), StandardCharsets.UTF_8).compareTo(beforeId) < 0)
+						.map(RedisZSetCommands.Tuple::getValue)
+						.toList();
+				if (idList.isEmpty()) {
+					continue;
+				}
+				byte[][] keys = idList.stream().map(id -> raw(KEY_PREFIX + new String(id, StandardCharsets.UTF_8)))
+						.toArray(byte[][]::new);
+				List<byte[]> values = connection.stringCommands().mGet(keys);
+				for (int i = 0; i < idList.size(); i++) {
+					byte[] value = values == null ? null : values.get(i);
+					if (value == null) {
+						danglingIds.add(idList.get(i));
+						continue;
+					}
+					tasks.add(serializer.deserialize(value));
+				}
+				if (tuples.size() < count) {
+					break;
+				}
+			}
+			danglingIds.forEach(id -> removeFromIndexes(connection, id));
+			return tasks;
 		});
-		if (keys == null || keys.isEmpty()) {
-			return Collections.emptyList();
+	}
+
+	/**
+	 * bindIdempotencyKey：用 SET NX PX 原子地绑定幂等键，绑定失败时读取已绑定的任务ID，多个节点之间同样有效。
+	 * @param key
+	 * @param taskId
+	 * @param timeout
+	 * @return
+	 */
+	@Override
+	public String bindIdempotencyKey(String key, String taskId, Duration timeout) {
+		byte[] redisKey = (IDEMPOTENCY_KEY_PREFIX + key).getBytes(StandardCharsets.UTF_8);
+		byte[] value = taskId.getBytes(StandardCharsets.UTF_8);
+		return this.redisTemplate.execute((RedisCallback<String>) connection -> {
+			Boolean bound = connection.stringCommands().set(redisKey, value,
+					Expiration.milliseconds(timeout.toMillis()), RedisStringCommands.SetOption.SET_IF_ABSENT);
+			if (Boolean.TRUE.equals(bound)) {
+				return null;
+			}
+			byte[] existing = connection.stringCommands().get(redisKey);
+			return existing == null ? null : new String(existing, StandardCharsets.UTF_8);
+		});
+	}
+
+	@Override
+	public void unbindIdempotencyKey(String key) {
+		this.redisTemplate.delete(IDEMPOTENCY_KEY_PREFIX + key);
+	}
+
+	/**
+	 * 提交时间早于有效期的任务，值一定已经过期，直接按分数从索引中移除.
+	 */
+	private void trimExpired(RedisConnection connection) {
+		double expiredBefore = System.currentTimeMillis() - this.timeout.toMillis();
+		RedisZSetCommands.Range expired = RedisZSetCommands.Range.range().lt(expiredBefore);
+		connection.zSetCommands().zRemRangeByScore(raw(INDEX_KEY), expired);
+		for (TaskStatus status : TaskStatus.values()) {
+			connection.zSetCommands().zRemRangeByScore(statusIndexKey(status), expired);
+		}
+	}
+
+	private void removeFromIndexes(RedisConnection connection, byte[] member) {
+		connection.zSetCommands().zRem(raw(INDEX_KEY), member);
+		for (TaskStatus status : TaskStatus.values()) {
+			connection.zSetCommands().zRem(statusIndexKey(status), member);
 		}
-		ValueOperations<String, Task> operations = this.redisTemplate.opsForValue();
-		return keys.stream().map(operations::get)
-				.filter(Objects::nonNull)
-				.toList();
+	}
+
+	@SuppressWarnings("unchecked")
+	private RedisSerializer<Task> valueSerializer() {
+		return (RedisSerializer<Task>) this.redisTemplate.getValueSerializer();
 	}
 
 	private String getRedisKey(String id) {
 		return KEY_PREFIX + id;
 	}
 
+	private static byte[] statusIndexKey(TaskStatus status) {
+		return raw(STATUS_INDEX_KEY_PREFIX + status.name());
+	}
+
+	private static byte[] raw(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
 }
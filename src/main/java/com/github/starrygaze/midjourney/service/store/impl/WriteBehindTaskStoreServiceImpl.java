@@ -0,0 +1,130 @@
+package com.github.starrygaze.midjourney.service.store.impl;
+
+import com.github.starrygaze.midjourney.entity.Task;
+import com.github.starrygaze.midjourney.enums.TaskStatus;
+import com.github.starrygaze.midjourney.service.store.TaskStoreService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * WriteBehindTaskStoreServiceImpl 是放在任务存储前面的延迟写入层：执行中任务的保存先记在缓冲区，同一个任务在一个刷新周期内的多次保存合并为一次，
+ * 到期后把缓冲区中所有任务用一次批量写入交给实际的存储。
+ *
+ * 任务进入结束状态(SUCCESS、FAILURE)时立即同步写入，不经过缓冲区，最终状态不会因为进程退出而丢失。
+ * 读取单个任务时优先返回缓冲区中的任务，查询列表前先刷新缓冲区，调用方总能读到自己刚保存的内容。应用关闭时刷新剩余的任务。
+ */
+@Slf4j
+public class WriteBehindTaskStoreServiceImpl implements TaskStoreService {
+	private final TaskStoreService delegate;
+	private final ThreadPoolTaskScheduler scheduler;
+
+	/**
+	 * 任务ID -> 等待写入的任务，缓冲区中只保留每个任务最新的一次保存
+	 */
+	private final Map<String, Task> pending = new ConcurrentHashMap<>();
+
+	/**
+	 * 写入实际存储时持有，保证同一个任务不会被较早的批量写入覆盖较新的同步写入
+	 */
+	private final Object writeLock = new Object();
+
+	public WriteBehindTaskStoreServiceImpl(TaskStoreService delegate, Duration flushDelay) {
+		this.delegate = delegate;
+		this.scheduler = new ThreadPoolTaskScheduler();
+		this.scheduler.setPoolSize(1);
+		this.scheduler.setThreadNamePrefix("TaskStoreFlush-");
+		this.scheduler.initialize();
+		this.scheduler.scheduleWithFixedDelay(this::flush, flushDelay);
+	}
+
+	@Override
+	public void saveTask(Task task) {
+		if (task.getStatus() == TaskStatus.SUCCESS || task.getStatus() == TaskStatus.FAILURE) {
+			synchronized (this.writeLock) {
+				this.pending.remove(task.getId());
+				this.delegate.saveTask(task);
+			}
+			return;
+		}
+		this.pending.put(task.getId(), task);
+	}
+
+	@Override
+	public void deleteTask(String id) {
+		synchronized (this.writeLock) {
+			this.pending.remove(id);
+			this.delegate.deleteTask(id);
+		}
+	}
+
+	@Override
+	public Task getTask(String id) {
+		Task task = this.pending.get(id);
+		return task != null ? task : this.delegate.getTask(id);
+	}
+
+	@Override
+	public List<Task> listTask() {
+		flush();
+		return this.delegate.listTask();
+	}
+
+	@Override
+	public List<Task> listTask(TaskStatus status, Long before, String beforeId, int limit) {
+		flush();
+		return this.delegate.listTask(status, before, beforeId, limit);
+	}
+
+	@Override
+	public String bindIdempotencyKey(String key, String taskId, Duration timeout) {
+		return this.delegate.bindIdempotencyKey(key, taskId, timeout);
+	}
+
+	@Override
+	public void unbindIdempotencyKey(String key) {
+		this.delegate.unbindIdempotencyKey(key);
+	}
+
+	/**
+	 * 把缓冲区中的任务批量写入实际的存储，写入失败的任务放回缓冲区，下个周期重试.
+	 */
+	public void flush() {
+		if (this.pending.isEmpty()) {
+			return;
+		}
+		synchronized (this.writeLock) {
+			List<Task> tasks = new ArrayList<>(this.pending.size());
+			for (String id : new ArrayList<>(this.pending.keySet())) {
+				Task task = this.pending.remove(id);
+				if (task != null) {
+					tasks.add(task);
+				}
+			}
+			try {
+				this.delegate.saveTasks(tasks);
+			} catch (Exception e) {
+				log.warn("批量保存任务失败, size: {}, {}", tasks.size(), e.getMessage());
+				tasks.forEach(task -> this.pending.putIfAbsent(task.getId(), task));
+			}
+		}
+	}
+
+	/**
+	 * 应用关闭时停止定时刷新，写入缓冲区中剩余的任务，再关闭实际的存储.
+	 */
+	public void shutdown() throws Exception {
+		this.scheduler.shutdown();
+		flush();
+		if (this.delegate instanceof DisposableBean disposable) {
+			disposable.destroy();
+		}
+	}
+
+}
@@ -5,6 +5,7 @@ import com.github.starrygaze.midjourney.entity.Task;
 import com.github.starrygaze.midjourney.support.TaskCondition;
 import eu.maxschuster.dataurl.DataUrl;
 
+import java.nio.file.Path;
 import java.util.stream.Stream;
 
 public interface TaskService {
@@ -20,4 +21,13 @@ public interface TaskService {
 	Message<String> submitVariation(Task task, String targetMessageId, String targetMessageHash, int index);
 
 	Message<String> submitDescribe(Task task, DataUrl dataUrl);
+
+	/**
+	 * 提交图生文任务，图片为临时文件，由任务服务在上传结束或提交失败后删除.
+	 */
+	Message<String> submitDescribe(Task task, String mimeType, Path imageFile);
+
+	Long estimateFinishTime(Task task);
+
+	void reportBackpressure(String channelId, String reason);
 }
\ No newline at end of file
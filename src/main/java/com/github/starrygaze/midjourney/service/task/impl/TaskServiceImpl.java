@@ -1,6 +1,9 @@
 package com.github.starrygaze.midjourney.service.task.impl;
 
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.text.CharSequenceUtil;
 import com.github.starrygaze.midjourney.ProxyProperties;
+import com.github.starrygaze.midjourney.enums.Action;
 import com.github.starrygaze.midjourney.enums.TaskStatus;
 import com.github.starrygaze.midjourney.result.Message;
 import com.github.starrygaze.midjourney.entity.Task;
@@ -8,85 +11,156 @@ import com.github.starrygaze.midjourney.service.discord.DiscordService;
 import com.github.starrygaze.midjourney.service.notify.NotifyService;
 import com.github.starrygaze.midjourney.service.store.TaskStoreService;
 import com.github.starrygaze.midjourney.service.task.TaskService;
+import com.github.starrygaze.midjourney.support.AdaptiveConcurrencyLimiter;
+import com.github.starrygaze.midjourney.support.DiscordAccount;
+import com.github.starrygaze.midjourney.support.DiscordAccountPool;
+import com.github.starrygaze.midjourney.support.FairTaskQueue;
+import com.github.starrygaze.midjourney.support.HashedTimingWheel;
+import com.github.starrygaze.midjourney.support.RetryLaterException;
+import com.github.starrygaze.midjourney.support.StripedExecutor;
 import com.github.starrygaze.midjourney.support.TaskCondition;
+import com.github.starrygaze.midjourney.support.TaskDurationStats;
+import com.github.starrygaze.midjourney.support.TaskRegistry;
 import com.github.starrygaze.midjourney.util.MimeTypeUtils;
 import eu.maxschuster.dataurl.DataUrl;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.core.io.FileSystemResource;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpClientErrorException;
 
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
-import java.util.ArrayList;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Collections;
-import java.util.List;
-import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.stream.Stream;
 
 /**
  * 它主要负责处理一些与任务 (Task) 相关的操作，如任务的获取、提交和状态更新等。
+ * 任务执行是非阻塞的状态机：派发线程只负责向discord提交交互，之后由消息处理器通过任务的状态变更回调驱动状态流转，
+ * 并发数由许可数控制，而不是由阻塞等待的线程数控制，许可数会根据discord和midjourney的限流反馈自动调整。
+ * 每个执行中的任务在时间轮上登记自己的超时时间，到期立即失败并释放许可。等待中的任务按调用方加权公平排队，不同任务类型有不同的优先级。
+ * 配置了多个discord账号时，每个账号有独立的等待队列、并发许可和耗时统计，新任务分配给负载最低的健康账号，放大、变换任务固定在原任务所在的账号执行。
+ * 账号的交互接口熔断或被限流期间暂停派发，任务留在等待队列中，在时间轮上到期后再恢复派发，派发线程从不睡眠等待。
+ * 执行中的进度变更按任务合并，同一任务在最小通知间隔内只保存和回调一次最新的进度，状态变更立即处理。
+ * 任务的保存和回调在单独的有界线程池中按任务顺序执行，回调地址响应慢不会占用派发线程。
  */
 @Slf4j
 @Service
 public class TaskServiceImpl implements TaskService {
+	/**
+	 * 提交请求因网络等传输错误失败后最多重新提交的次数，被限流(429)不计入
+	 */
+	private static final int MAX_SUBMIT_RETRIES = 2;
+
 	@Resource
 	private TaskStoreService taskStoreService;
 	@Resource
-	private DiscordService discordService;
-	@Resource
 	private NotifyService notifyService;
 
+	private final ProxyProperties.TaskQueueConfig queueConfig;
 	private final ThreadPoolTaskExecutor taskExecutor;
-	private final List<Task> runningTasks;
+	/**
+	 * 按任务ID分条保存任务和发送回调，回调地址响应慢时不阻塞派发线程
+	 */
+	private final StripedExecutor notifyExecutor;
+	private final TaskRegistry runningTasks;
+	/**
+	 * 按账号(频道id)划分的等待队列和并发许可
+	 */
+	private final Map<String, Worker> workers;
+	private final HashedTimingWheel timingWheel;
+	private final Map<String, HashedTimingWheel.Timeout> deadlines = new ConcurrentHashMap<>();
+	/**
+	 * 任务最近一次通知的时间，以及已登记了延迟通知、等待合并的任务
+	 */
+	private final Map<String, Long> progressNotifiedAt = new ConcurrentHashMap<>();
+	private final Set<String> progressPending = ConcurrentHashMap.newKeySet();
 
-	public TaskServiceImpl(ProxyProperties properties) {
+	public TaskServiceImpl(ProxyProperties properties, DiscordAccountPool accountPool, MeterRegistry meterRegistry,
+			HashedTimingWheel timingWheel) {
 		ProxyProperties.TaskQueueConfig queueConfig = properties.getQueue();
-		this.runningTasks = Collections.synchronizedList(new ArrayList<>(queueConfig.getCoreSize() * 2));
+		this.queueConfig = queueConfig;
+		this.timingWheel = timingWheel;
+		this.runningTasks = new TaskRegistry();
+		Map<String, Worker> map = new LinkedHashMap<>();
+		for (DiscordAccount account : accountPool.getAccounts()) {
+			Worker worker = new Worker(account, new FairTaskQueue<>(queueConfig.getQueueSize()), new TaskDurationStats(),
+					new AtomicBoolean(), new AtomicLong(), new AtomicInteger());
+			map.put(account.getChannelId(), worker);
+			Gauge.builder("mj.queue.concurrency.limit", account.getLimiter(), AdaptiveConcurrencyLimiter::getLimit)
+					.tag("account", account.getChannelId()).description("当前的并发上限").register(meterRegistry);
+			Gauge.builder("mj.queue.in-flight", account.getLimiter(), AdaptiveConcurrencyLimiter::getInFlight)
+					.tag("account", account.getChannelId()).description("执行中的任务数").register(meterRegistry);
+			Gauge.builder("mj.queue.waiting", worker.waitingQueue(), FairTaskQueue::size)
+					.tag("account", account.getChannelId()).description("排队中的任务数").register(meterRegistry);
+			Gauge.builder("mj.account.healthy", account, a -> a.isHealthy() ? 1 : 0)
+					.tag("account", account.getChannelId()).description("账号是否健康").register(meterRegistry);
+		}
+		this.workers = Collections.unmodifiableMap(map);
 		this.taskExecutor = new ThreadPoolTaskExecutor();
-		this.taskExecutor.setCorePoolSize(queueConfig.getCoreSize());
-		this.taskExecutor.setMaxPoolSize(queueConfig.getCoreSize());
-		this.taskExecutor.setQueueCapacity(queueConfig.getQueueSize());
-		this.taskExecutor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+		this.taskExecutor.setCorePoolSize(queueConfig.getDispatchSize());
+		this.taskExecutor.setMaxPoolSize(queueConfig.getDispatchSize());
 		this.taskExecutor.setThreadNamePrefix("TaskQueue-");
 		this.taskExecutor.initialize();
+		this.notifyExecutor = new StripedExecutor("TaskNotify-", queueConfig.getNotifyThreads(), queueConfig.getNotifyQueueSize());
+		Gauge.builder("mj.queue.notify.queue", this.notifyExecutor, StripedExecutor::queueSize)
+				.description("等待保存和回调的任务变更数").register(meterRegistry);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		this.taskExecutor.shutdown();
+		this.notifyExecutor.shutdown();
 	}
 
 	/**
-	 * getTask(String id): 这个方法接收一个任务ID作为参数，然后在当前正在执行的任务列表中查找并返回对应的任务对象。如果没有找到，就返回 null。
+	 * getTask(String id): 这个方法接收一个任务ID作为参数，然后通过执行中任务登记表的id索引返回对应的任务对象。如果没有找到，就返回 null。
 	 * @param id
 	 * @return
 	 */
 	@Override
 	public Task getTask(String id) {
-		return this.runningTasks.stream().filter(t -> id.equals(t.getId())).findFirst().orElse(null);
+		return this.runningTasks.get(id);
 	}
 
 	/**
-	 * findTask(TaskCondition condition): 这个方法接收一个任务条件（TaskCondition）对象作为参数，然后在当前正在执行的任务列表中查找并返回满足这个条件的所有任务对象的 Stream 流。
+	 * findTask(TaskCondition condition): 这个方法接收一个任务条件（TaskCondition）对象作为参数，然后在执行中任务登记表中选择最合适的索引查找，并返回满足这个条件的所有任务对象的 Stream 流。
 	 * @param condition
 	 * @return
 	 */
 	@Override
 	public Stream<Task> findTask(TaskCondition condition) {
-		return this.runningTasks.stream().filter(condition);
+		return this.runningTasks.find(condition);
 	}
 
 	/**
-	 * 这些方法都是提交任务的方法，它们接收一些参数（包括一个任务对象和一些其他参数），然后提交一个任务到任务执行器（ThreadPoolTaskExecutor）进行处理。
+	 * 这些方法都是提交任务的方法，它们接收一些参数（包括一个任务对象和一些其他参数），然后把任务放入等待队列，获得并发许可后由派发线程提交到discord。
 	 * 在提交任务的同时，也将这个任务保存到任务存储服务中，并将任务状态更新为提交状态，并通过通知服务发送通知。
 	 * @param task
 	 * @return
 	 */
 	@Override
 	public Message<String> submitImagine(Task task) {
-		return submitTask(task, () -> {
-			Message<Void> result = this.discordService.imagine(task.getFinalPrompt());
-			checkAndWait(task, result);
-		});
+		return submitTask(task, discordService -> discordService.imagine(task.getFinalPrompt()));
 	}
 
 	/**
-	 * 这些方法都是提交任务的方法，它们接收一些参数（包括一个任务对象和一些其他参数），然后提交一个任务到任务执行器（ThreadPoolTaskExecutor）进行处理。
+	 * 这些方法都是提交任务的方法，它们接收一些参数（包括一个任务对象和一些其他参数），然后把任务放入等待队列，获得并发许可后由派发线程提交到discord。
 	 * 在提交任务的同时，也将这个任务保存到任务存储服务中，并将任务状态更新为提交状态，并通过通知服务发送通知。
 	 * @param task
 	 * @param targetMessageId
@@ -96,15 +170,12 @@ public class TaskServiceImpl implements TaskService {
 	 */
 	@Override
 	public Message<String> submitUpscale(Task task, String targetMessageId, String targetMessageHash, int index) {
-		return submitTask(task, () -> {
-			Message<Void> result = this.discordService.upscale(targetMessageId, index, targetMessageHash);
-			checkAndWait(task, result);
-		});
+		return submitTask(task, discordService -> discordService.upscale(targetMessageId, index, targetMessageHash));
 	}
 
 	/**
 	 *
-	 * 这些方法都是提交任务的方法，它们接收一些参数（包括一个任务对象和一些其他参数），然后提交一个任务到任务执行器（ThreadPoolTaskExecutor）进行处理。
+	 * 这些方法都是提交任务的方法，它们接收一些参数（包括一个任务对象和一些其他参数），然后把任务放入等待队列，获得并发许可后由派发线程提交到discord。
 	 * 在提交任务的同时，也将这个任务保存到任务存储服务中，并将任务状态更新为提交状态，并通过通知服务发送通知。
 	 * @param task
 	 * @param targetMessageId
@@ -114,15 +185,12 @@ public class TaskServiceImpl implements TaskService {
 	 */
 	@Override
 	public Message<String> submitVariation(Task task, String targetMessageId, String targetMessageHash, int index) {
-		return submitTask(task, () -> {
-			Message<Void> result = this.discordService.variation(targetMessageId, index, targetMessageHash);
-			checkAndWait(task, result);
-		});
+		return submitTask(task, discordService -> discordService.variation(targetMessageId, index, targetMessageHash));
 	}
 
 	/**
 	 *
-	 * 这些方法都是提交任务的方法，它们接收一些参数（包括一个任务对象和一些其他参数），然后提交一个任务到任务执行器（ThreadPoolTaskExecutor）进行处理。
+	 * 这些方法都是提交任务的方法，它们接收一些参数（包括一个任务对象和一些其他参数），然后把任务放入等待队列，获得并发许可后由派发线程提交到discord。
 	 * 在提交任务的同时，也将这个任务保存到任务存储服务中，并将任务状态更新为提交状态，并通过通知服务发送通知。
 	 * @param task
 	 * @param dataUrl
@@ -130,91 +198,498 @@ public class TaskServiceImpl implements TaskService {
 	 */
 	@Override
 	public Message<String> submitDescribe(Task task, DataUrl dataUrl) {
-		return submitTask(task, () -> {
-			String taskFileName = task.getId() + "." + MimeTypeUtils.guessFileSuffix(dataUrl.getMimeType());
-			Message<String> uploadResult = this.discordService.upload(taskFileName, dataUrl);
-			if (uploadResult.getCode() != Message.SUCCESS_CODE) {
-				task.setFinishTime(System.currentTimeMillis());
-				task.setFailReason(uploadResult.getDescription());
-				changeStatusAndNotify(task, TaskStatus.FAILURE);
-				return;
+		return submitDescribe(task, dataUrl.getMimeType(), new ByteArrayResource(dataUrl.getData()), () -> { });
+	}
+
+	/**
+	 * submitDescribe(Task task, String mimeType, Path imageFile)：提交上传的图片文件，上传时从文件流式读取，不把图片读入内存。
+	 * 临时文件在提交结束后删除，被限流需要重新提交时保留到重新提交结束，没能进入等待队列时立即删除。
+	 * @param task
+	 * @param mimeType
+	 * @param imageFile
+	 * @return
+	 */
+	@Override
+	public Message<String> submitDescribe(Task task, String mimeType, Path imageFile) {
+		return submitDescribe(task, mimeType, new FileSystemResource(imageFile), () -> FileUtil.del(imageFile));
+	}
+
+	private Message<String> submitDescribe(Task task, String mimeType, org.springframework.core.io.Resource image, Runnable cleanup) {
+		Message<String> result = submitTask(task, discordService -> {
+			String taskFileName = task.getId() + "." + MimeTypeUtils.guessFileSuffix(mimeType);
+			Message<String> uploadResult = discordService.upload(taskFileName, mimeType, image);
+			Message<Void> describeResult = describeUploaded(task, discordService, uploadResult);
+			if (describeResult.getCode() != Message.SUCCESS_CODE && Boolean.TRUE.equals(uploadResult.getProperty("cached"))) {
+				// 复用的附件可能已在discord上失效，describe失败时已从缓存中移除，重新上传后再试一次
+				log.debug("describe with cached upload failed, re-upload, id: {}, {}", task.getId(), describeResult.getDescription());
+				describeResult = describeUploaded(task, discordService, discordService.upload(taskFileName, mimeType, image));
 			}
-			String finalFileName = uploadResult.getResult();
-			Message<Void> result = this.discordService.describe(finalFileName);
-			checkAndWait(task, result);
-		});
+			return describeResult;
+		}, cleanup);
+		if (result.getCode() != Message.SUCCESS_CODE && result.getCode() != Message.WAITING_CODE) {
+			cleanup.run();
+		}
+		return result;
+	}
+
+	private Message<Void> describeUploaded(Task task, DiscordService discordService, Message<String> uploadResult) {
+		if (uploadResult.getCode() != Message.SUCCESS_CODE) {
+			return Message.of(uploadResult.getCode(), uploadResult.getDescription());
+		}
+		String finalFileName = uploadResult.getResult();
+		// 复用已上传的附件时，describe结果中的文件名是第一次上传时的文件名，任务按这个文件名匹配结果
+		task.setKey(CharSequenceUtil.subAfter(finalFileName, "/", true));
+		this.runningTasks.reindex(task);
+		return discordService.describe(finalFileName);
+	}
+
+	private Message<String> submitTask(Task task, Function<DiscordService, Message<Void>> submitter) {
+		return submitTask(task, submitter, () -> { });
 	}
 
 	/**
-	 * submitTask(Task task, Runnable runnable)，用于提交任务到任务执行器（ThreadPoolTaskExecutor）进行处理，并处理一些相关的逻辑，如保存任务到任务存储服务、捕获和处理异常等。
+	 * submitTask(Task task, Supplier submitter)，用于把任务放入等待队列，并处理一些相关的逻辑，如保存任务到任务存储服务、队列已满时的拒绝等。
+	 * 任务先分配账号，再在账号的等待队列中按调用方(callerId)的权重和任务类型的优先级排队，返回的排队位置是任务在公平调度下实际前面的任务数。
 	 * @param task
-	 * @param runnable
+	 * @param submitter 使用分配的账号向discord提交交互的操作
+	 * @param cleanup 提交结束(不再重新提交)后释放资源的操作
 	 * @return
 	 */
-	private Message<String> submitTask(Task task, Runnable runnable) {
+	private Message<String> submitTask(Task task, Function<DiscordService, Message<Void>> submitter, Runnable cleanup) {
+		Worker worker = route(task);
+		if (worker == null) {
+			return Message.failure("关联任务所在的discord账号不可用");
+		}
+		task.setChannelId(worker.account().getChannelId());
 		this.taskStoreService.saveTask(task);
-		int size;
-		try {
-			size = this.taskExecutor.getThreadPoolExecutor().getQueue().size();
+		TaskEntry entry = new TaskEntry(task, submitter, cleanup, 0);
+		if (!offer(worker, entry)) {
+			this.taskStoreService.deleteTask(task.getId());
+			long retryAfter = estimateRetryAfterSeconds(worker, task.getAction());
+			return Message.<String>failure("队列已满，请" + retryAfter + "秒后重试").setProperty("retryAfter", retryAfter);
+		}
+		dispatchNext(worker);
+		int size = worker.waitingQueue().position(entry);
+		long now = System.currentTimeMillis();
+		long duration = worker.durationStats().estimate(task.getAction());
+		if (size <= 0) {
+			long waitMillis = size < 0 ? 0 : estimateWaitMillis(worker, size, task.getAction());
+			return Message.success(task.getId())
+					.setProperty("estimatedFinishTime", now + waitMillis + duration);
+		} else {
+			long waitMillis = estimateWaitMillis(worker, size, task.getAction());
+			return Message.success(Message.WAITING_CODE, "排队中，前面还有" + size + "个任务，预计等待" + TimeUnit.MILLISECONDS.toSeconds(waitMillis) + "秒", task.getId())
+					.setProperty("position", size)
+					.setProperty("estimatedFinishTime", now + waitMillis + duration);
+		}
+	}
+
+	/**
+	 * offer(Worker worker, TaskEntry entry)：把任务按调用方的权重和任务类型的优先级放入账号的等待队列，队列已满时返回false.
+	 * @param worker
+	 * @param entry
+	 * @return
+	 */
+	private boolean offer(Worker worker, TaskEntry entry) {
+		Task task = entry.task();
+		String caller = CharSequenceUtil.nullToDefault(task.getCallerId(), "");
+		int priority = this.queueConfig.getActionPriorities().getOrDefault(task.getAction(), Integer.MAX_VALUE);
+		int weight = this.queueConfig.getCallerWeights().getOrDefault(caller, 1);
+		return worker.waitingQueue().offer(entry, caller, priority, weight);
+	}
+
+	/**
+	 * route(Task task)：选择执行任务的账号。放大、变换等基于已有消息的任务只能由原任务所在的账号执行，账号已不存在时返回null；
+	 * 其他任务分配给健康账号中负载(执行中和排队中的任务数相对并发上限的比例)最低的一个，所有账号都不健康时按负载分配，不直接拒绝。
+	 * @param task
+	 * @return
+	 */
+	private Worker route(Task task) {
+		if (CharSequenceUtil.isNotBlank(task.getChannelId())) {
+			return this.workers.get(task.getChannelId());
+		}
+		Comparator<Worker> byLoad = Comparator.comparingDouble(Worker::load);
+		return this.workers.values().stream()
+				.filter(worker -> worker.account().isHealthy())
+				.min(byLoad)
+				.orElseGet(() -> this.workers.values().stream().min(byLoad).orElse(null));
+	}
+
+	/**
+	 * reportBackpressure(String channelId, String reason)：midjourney在账号的频道回复了排队或并发超限的提示，说明账号当前并发超过了订阅级别，下调该账号的并发上限。
+	 * @param channelId
+	 * @param reason
+	 */
+	@Override
+	public void reportBackpressure(String channelId, String reason) {
+		log.debug("midjourney backpressure, channel: {}, {}", channelId, reason);
+		Worker worker = this.workers.get(channelId);
+		if (worker != null) {
+			worker.account().getLimiter().onDropped();
+		}
+	}
+
+	/**
+	 * estimateFinishTime(Task task)：估算任务的完成时间。执行中的任务按开始时间加同类任务耗时的中位数估算，
+	 * 排队中的任务再加上按当前排队位置和队列消化速度估算的等待时间，已结束的任务返回null。
+	 * @param task
+	 * @return
+	 */
+	@Override
+	public Long estimateFinishTime(Task task) {
+		Worker worker = this.workers.get(task.getChannelId());
+		if (worker == null) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		Task running = this.runningTasks.get(task.getId());
+		if (running != null) {
+			long startTime = running.getStartTime() == null ? now : running.getStartTime();
+			return Math.max(now, startTime + worker.durationStats().estimate(running.getAction()));
+		}
+		int position = worker.waitingQueue().position(e -> e.task().getId().equals(task.getId()));
+		if (position < 0) {
+			return null;
+		}
+		return now + estimateWaitMillis(worker, position, task.getAction()) + worker.durationStats().estimate(task.getAction());
+	}
+
+	/**
+	 * estimateWaitMillis：估算账号队列中排在position位置的任务还要等待多久才开始执行。
+	 * 有最近的出队记录时按账号实测的消化速度计算，否则按账号的并发数和同类任务的耗时估算。
+	 * @param worker
+	 * @param position
+	 * @param action
+	 * @return
+	 */
+	private long estimateWaitMillis(Worker worker, int position, Action action) {
+		double drainRate = worker.durationStats().drainRate();
+		if (drainRate > 0) {
+			return (long) ((position + 1) * 1000 / drainRate);
+		}
+		long rounds = (long) Math.ceil((position + 1) / (double) worker.account().getLimiter().getLimit());
+		return rounds * worker.durationStats().estimate(action);
+	}
+
+	/**
+	 * estimateRetryAfterSeconds：队列已满时建议的重试间隔，即队列腾出一个位置大约需要的时间。
+	 * @param worker
+	 * @param action
+	 * @return
+	 */
+	private long estimateRetryAfterSeconds(Worker worker, Action action) {
+		double drainRate = worker.durationStats().drainRate();
+		long millis = drainRate > 0 ? (long) (1000 / drainRate)
+				: worker.durationStats().estimate(action) / worker.account().getLimiter().getLimit();
+		return Math.min(Math.max(TimeUnit.MILLISECONDS.toSeconds(millis) + 1, 1), 600);
+	}
+
+	/**
+	 * dispatchNext(Worker worker)：只要账号的等待队列不为空且账号还有并发许可，就取出队首任务交给派发线程。
+	 * 每次入队和每次释放许可后都会调用，释放许可后会重新检查队列，不会遗漏派发。
+	 * 账号熔断、被限流或暂停派发期间不派发，在时间轮上登记一次到期后的恢复派发；熔断后试探恢复(半开)时只派发一个任务，它提交结束后再继续派发。
+	 * @param worker
+	 */
+	private void dispatchNext(Worker worker) {
+		AdaptiveConcurrencyLimiter limiter = worker.account().getLimiter();
+		while (!worker.waitingQueue().isEmpty()) {
+			long pauseMillis = Math.max(worker.account().getDiscordService().unavailableMillis(),
+					worker.pausedUntil().get() - System.currentTimeMillis());
+			if (pauseMillis > 0) {
+				scheduleResume(worker, pauseMillis);
+				return;
+			}
+			if (!reserveSubmit(worker)) {
+				return;
+			}
+			if (!limiter.tryAcquire()) {
+				worker.submitting().decrementAndGet();
+				return;
+			}
+			TaskEntry entry = worker.waitingQueue().poll();
+			if (entry == null) {
+				limiter.release();
+				worker.submitting().decrementAndGet();
+				continue;
+			}
+			worker.durationStats().recordDrain();
 			this.taskExecutor.execute(() -> {
-				task.setStartTime(System.currentTimeMillis());
-				this.runningTasks.add(task);
 				try {
-					this.taskStoreService.saveTask(task);
-					runnable.run();
+					startTask(worker, entry);
 				} finally {
-					this.runningTasks.remove(task);
+					worker.submitting().decrementAndGet();
+					dispatchNext(worker);
 				}
 			});
-		} catch (RejectedExecutionException e) {
-			this.taskStoreService.deleteTask(task.getId());
-			return Message.failure("队列已满，请稍后尝试");
 		}
-		if (size == 0) {
-			return Message.success(task.getId());
-		} else {
-			return Message.success(Message.WAITING_CODE, "排队中，前面还有" + size + "个任务", task.getId());
+	}
+
+	/**
+	 * reserveSubmit(Worker worker)：登记一个正在提交的任务。熔断器半开时只允许一个任务在提交，作为试探.
+	 * @param worker
+	 * @return 是否可以派发
+	 */
+	private boolean reserveSubmit(Worker worker) {
+		if (worker.account().getDiscordService().isRecovering()) {
+			return worker.submitting().compareAndSet(0, 1);
+		}
+		worker.submitting().incrementAndGet();
+		return true;
+	}
+
+	private void scheduleResume(Worker worker, long delayMillis) {
+		if (worker.resumeScheduled().compareAndSet(false, true)) {
+			log.warn("discord unavailable or rate limited, pause dispatching for {}ms, account: {}", delayMillis, worker.account().getChannelId());
+			this.timingWheel.schedule(() -> {
+				worker.resumeScheduled().set(false);
+				dispatchNext(worker);
+			}, delayMillis, TimeUnit.MILLISECONDS);
 		}
 	}
 
 	/**
-	 * checkAndWait(Task task, Message<Void> result)：这个方法接收一个任务对象和一个消息对象作为参数。根据消息的状态码，它会更新任务的状态和完成时间，
-	 * 并通过通知服务发送通知。如果消息的状态码不等于成功状态码，它会将任务的失败原因设置为消息的描述，更改任务状态为失败，并发出通知。
-	 * 如果消息的状态码是成功的，它会更改任务状态为提交并发出通知。然后，它会在任务处于进行中状态时，使任务线程等待（休眠），直到任务的状态不再是进行中状态。
-	 * 如果线程在等待时被中断，它会将中断状态传播回当前线程。
-	 * @param task
-	 * @param result
+	 * startTask(Worker worker, TaskEntry entry)：在派发线程中执行，注册任务的状态变更回调并使用账号向discord提交交互，提交完成后立即返回，不等待任务结束。
+	 * 任务在提交交互之前就置为SUBMITTED，这样即使discord的消息事件先于接口响应到达，也能匹配到任务。提交结果会更新账号的健康状态。
+	 * 派发后账号刚好熔断或被限流时，释放许可并把任务放回等待队列，等恢复后再派发；提交时被限流同样放回等待队列，见deferTask。
+	 * @param worker
+	 * @param entry
 	 */
-	private void checkAndWait(Task task, Message<Void> result) {
+	private void startTask(Worker worker, TaskEntry entry) {
+		Task task = entry.task();
+		long unavailableMillis = worker.account().getDiscordService().unavailableMillis();
+		if (unavailableMillis > 0) {
+			worker.account().getLimiter().release();
+			requeue(worker, entry, unavailableMillis);
+			return;
+		}
+		task.setStartTime(System.currentTimeMillis());
+		task.setStatus(TaskStatus.SUBMITTED);
+		task.setChangeCallback(this::onTaskChange);
+		this.runningTasks.add(task);
+		Duration timeout = this.queueConfig.getActionTimeouts().getOrDefault(task.getAction(),
+				Duration.ofMinutes(this.queueConfig.getTimeoutMinutes()));
+		this.deadlines.put(task.getId(), this.timingWheel.schedule(() -> expireTask(task), timeout.toMillis(), TimeUnit.MILLISECONDS));
+		Message<Void> result;
+		try {
+			result = entry.submitter().apply(worker.account().getDiscordService());
+		} catch (RetryLaterException e) {
+			deferTask(worker, entry, e);
+			return;
+		} catch (Exception e) {
+			log.error("提交任务到discord失败, id: {}", task.getId(), e);
+			result = Message.failure("提交任务到discord失败: " + e.getMessage());
+		}
+		entry.cleanup().run();
 		if (result.getCode() != Message.SUCCESS_CODE) {
-			task.setFinishTime(System.currentTimeMillis());
-			task.setFailReason(result.getDescription());
-			changeStatusAndNotify(task, TaskStatus.FAILURE);
+			worker.account().onSubmitFailure(result.getCode());
+			String failReason = result.getDescription();
+			boolean changed = task.transition(TaskStatus.FAILURE, t -> {
+				t.setFinishTime(System.currentTimeMillis());
+				t.setFailReason(failReason);
+			});
+			if (changed) {
+				handleTaskChange(task);
+			}
 			return;
 		}
-		changeStatusAndNotify(task, TaskStatus.SUBMITTED);
-		do {
-			try {
-				task.sleep();
-			} catch (InterruptedException e) {
-				Thread.currentThread().interrupt();
+		worker.account().onSubmitSuccess();
+		if (task.getStatus() == TaskStatus.SUBMITTED) {
+			publish(task);
+		}
+	}
+
+	/**
+	 * deferTask(Worker worker, TaskEntry entry, RetryLaterException e)：提交请求没有发出或确定没有被discord处理，需要等待后重新提交。
+	 * 撤销这次派发，释放许可，把任务放回等待队列，账号暂停派发到等待结束，由时间轮恢复派发，派发线程不等待。
+	 * 被discord限流(http 429，包括慢速模式20016、操作频率限制20028)时收缩账号的并发上限，不计入重试次数；
+	 * 网络等传输错误后的重新提交最多 MAX_SUBMIT_RETRIES 次，超过后任务失败；任务在此期间已经结束(如收到midjourney的错误提示)时不再处理。
+	 * @param worker
+	 * @param entry
+	 * @param e
+	 */
+	private void deferTask(Worker worker, TaskEntry entry, RetryLaterException e) {
+		Task task = entry.task();
+		boolean rateLimited = e.getCause() instanceof HttpClientErrorException.TooManyRequests;
+		boolean failed = e.isAttempted() && !rateLimited;
+		if (failed && entry.retries() >= MAX_SUBMIT_RETRIES) {
+			log.error("提交任务到discord失败, id: {}", task.getId(), e.getCause());
+			entry.cleanup().run();
+			boolean changed = task.transition(TaskStatus.FAILURE, t -> {
+				t.setFinishTime(System.currentTimeMillis());
+				t.setFailReason("提交任务到discord失败: " + e.getCause().getMessage());
+			});
+			if (changed) {
+				handleTaskChange(task);
+			}
+			return;
+		}
+		if (!task.transition(TaskStatus.NOT_START, t -> t.setStartTime(null))) {
+			entry.cleanup().run();
+			return;
+		}
+		task.setChangeCallback(null);
+		this.runningTasks.remove(task);
+		HashedTimingWheel.Timeout timeout = this.deadlines.remove(task.getId());
+		if (timeout != null) {
+			timeout.cancel();
+		}
+		if (rateLimited) {
+			worker.account().getLimiter().onDropped();
+		}
+		worker.account().getLimiter().release();
+		log.debug("task deferred, id: {}, {}", task.getId(), e.getMessage());
+		int retries = failed ? entry.retries() + 1 : entry.retries();
+		requeue(worker, new TaskEntry(task, entry.submitter(), entry.cleanup(), retries), e.getDelayMillis());
+	}
+
+	/**
+	 * requeue(Worker worker, TaskEntry entry, long delayMillis)：把还没有提交的任务放回等待队列，账号至少暂停派发delayMillis，队列已满时任务失败.
+	 * @param worker
+	 * @param entry
+	 * @param delayMillis
+	 */
+	private void requeue(Worker worker, TaskEntry entry, long delayMillis) {
+		worker.pausedUntil().accumulateAndGet(System.currentTimeMillis() + delayMillis, Math::max);
+		if (offer(worker, entry)) {
+			dispatchNext(worker);
+			return;
+		}
+		entry.cleanup().run();
+		Task task = entry.task();
+		task.setFinishTime(System.currentTimeMillis());
+		task.setFailReason("discord暂时不可用");
+		task.setStatus(TaskStatus.FAILURE);
+		publish(task);
+	}
+
+	/**
+	 * expireTask(Task task)：任务的超时时间到期时由时间轮触发，任务仍在执行中则置为失败。
+	 * @param task
+	 */
+	private void expireTask(Task task) {
+		if (!this.runningTasks.contains(task)) {
+			return;
+		}
+		boolean changed = task.transition(TaskStatus.FAILURE, t -> {
+			t.setFinishTime(System.currentTimeMillis());
+			t.setFailReason("任务超时");
+		});
+		if (changed) {
+			task.notifyChange();
+		}
+	}
+
+	/**
+	 * onTaskChange(Task task)：任务的状态变更回调，由消息处理器或超时检查在各自线程中触发，先同步更新登记表索引，实际处理交给派发线程，不阻塞discord的事件线程。
+	 * 状态没有变化的执行中任务只是进度更新，合并后再通知。
+	 * @param task
+	 */
+	private void onTaskChange(Task task) {
+		task.setLastUpdateTime(System.currentTimeMillis());
+		boolean statusChanged = this.runningTasks.reindex(task);
+		if (!statusChanged && task.getStatus() == TaskStatus.IN_PROGRESS) {
+			onProgressChange(task);
+			return;
+		}
+		this.taskExecutor.execute(() -> handleTaskChange(task));
+	}
+
+	/**
+	 * onProgressChange(Task task)：距上次通知已超过最小间隔时立即通知，否则在时间轮上登记一次间隔到期后的通知，
+	 * 已登记的任务不再重复登记，到期时通知的是任务当时最新的进度。
+	 * @param task
+	 */
+	private void onProgressChange(Task task) {
+		if (!this.progressPending.add(task.getId())) {
+			return;
+		}
+		long notifiedAt = this.progressNotifiedAt.getOrDefault(task.getId(), 0L);
+		long delay = notifiedAt + this.queueConfig.getProgressNotifyInterval().toMillis() - System.currentTimeMillis();
+		if (delay <= 0) {
+			this.taskExecutor.execute(() -> flushProgress(task));
+		} else {
+			this.timingWheel.schedule(() -> this.taskExecutor.execute(() -> flushProgress(task)), delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void flushProgress(Task task) {
+		this.progressPending.remove(task.getId());
+		if (!this.runningTasks.contains(task) || task.getStatus() != TaskStatus.IN_PROGRESS) {
+			return;
+		}
+		this.progressNotifiedAt.put(task.getId(), System.currentTimeMillis());
+		publish(task);
+	}
+
+	/**
+	 * handleTaskChange(Task task)：保存任务并发送通知。任务进入结束状态时，从执行中列表移除、释放并发许可并派发下一个任务；
+	 * 移除成功才会处理，保证同一个任务只释放一次许可，晚到的事件会被忽略。
+	 * @param task
+	 */
+	private void handleTaskChange(Task task) {
+		TaskStatus status = task.getStatus();
+		if (status == TaskStatus.SUCCESS || status == TaskStatus.FAILURE) {
+			if (!this.runningTasks.remove(task)) {
 				return;
 			}
-			changeStatusAndNotify(task, task.getStatus());
-		} while (task.getStatus() == TaskStatus.IN_PROGRESS);
-		log.debug("task finished, id: {}, status: {}", task.getId(), task.getStatus());
+			task.setChangeCallback(null);
+			HashedTimingWheel.Timeout timeout = this.deadlines.remove(task.getId());
+			if (timeout != null) {
+				timeout.cancel();
+			}
+			this.progressNotifiedAt.remove(task.getId());
+			this.progressPending.remove(task.getId());
+			Worker worker = this.workers.get(task.getChannelId());
+			if (status == TaskStatus.SUCCESS && task.getStartTime() != null && task.getFinishTime() != null) {
+				long duration = task.getFinishTime() - task.getStartTime();
+				worker.account().getLimiter().onSuccess(duration, worker.durationStats().estimate(task.getAction()));
+				worker.durationStats().recordDuration(task.getAction(), duration);
+			}
+			publish(task);
+			log.debug("task finished, id: {}, status: {}", task.getId(), status);
+			worker.account().getLimiter().release();
+			dispatchNext(worker);
+			return;
+		}
+		if (!this.runningTasks.contains(task)) {
+			return;
+		}
+		this.progressNotifiedAt.put(task.getId(), System.currentTimeMillis());
+		publish(task);
 	}
 
 	/**
-	 * changeStatusAndNotify(Task task, TaskStatus status)：这个方法接收一个任务对象和一个任务状态作为参数。
-	 * 它会改变任务的状态，保存更改后的任务到任务存储服务，并通过通知服务发送通知。
+	 * publish(Task task)：把任务的保存和回调交给任务对应的保存线程，派发线程只负责状态变更和派发。
+	 * 同一个任务的变更按顺序保存和回调，执行时保存和回调的是任务当时最新的状态；线程的等待队列已满时派发线程等待。
 	 * @param task
-	 * @param status
 	 */
-	private void changeStatusAndNotify(Task task, TaskStatus status) {
-		task.setStatus(status);
-		this.taskStoreService.saveTask(task);
-		this.notifyService.notifyTaskChange(task);
+	private void publish(Task task) {
+		this.notifyExecutor.execute(task.getId(), () -> {
+			try {
+				this.taskStoreService.saveTask(task);
+				this.notifyService.notifyTaskChange(task);
+			} catch (Exception e) {
+				log.error("保存任务或发送回调失败, id: {}", task.getId(), e);
+			}
+		});
+	}
+
+	/**
+	 * 等待队列中的任务，使用分配的账号向discord提交它的操作，提交结束后释放资源的操作，以及提交失败后已重新提交的次数
+	 */
+	private record TaskEntry(Task task, Function<DiscordService, Message<Void>> submitter, Runnable cleanup, int retries) {
+	}
+
+	/**
+	 * 一个discord账号，以及它的等待队列、耗时统计、是否已登记恢复派发、暂停派发到的时间和已派发但还没有提交结束的任务数.
+	 * 不同账号的订阅级别不同，出图耗时和消化速度分开统计.
+	 */
+	private record Worker(DiscordAccount account, FairTaskQueue<TaskEntry> waitingQueue, TaskDurationStats durationStats,
+			AtomicBoolean resumeScheduled, AtomicLong pausedUntil, AtomicInteger submitting) {
+
+		double load() {
+			return this.account.load(this.waitingQueue.size());
+		}
 	}
 
-}
\ No newline at end of file
+}
@@ -1,11 +1,19 @@
 package com.github.starrygaze.midjourney.service.translate;
 
+import java.util.List;
 import java.util.regex.Pattern;
 
 public interface TranslateService {
 
 	String translateToEnglish(String prompt);
 
+	/**
+	 * 批量翻译，返回的结果与传入的顺序一致. 默认逐个翻译，支持批量接口或并发调用的实现可以覆盖.
+	 */
+	default List<String> translateToEnglish(List<String> prompts) {
+		return prompts.stream().map(this::translateToEnglish).toList();
+	}
+
 	default boolean containsChinese(String prompt) {
 		return Pattern.compile("[\u4e00-\u9fa5]").matcher(prompt).find();
 	}
@@ -8,12 +8,16 @@ import cn.hutool.crypto.digest.MD5;
 import com.github.starrygaze.midjourney.ProxyProperties;
 import com.github.starrygaze.midjourney.service.translate.TranslateService;
 import lombok.extern.slf4j.Slf4j;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.springframework.beans.factory.support.BeanDefinitionValidationException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * 这个类叫做 BaiduTranslateServiceImpl，它实现了 TranslateService 接口。从名字中我们可以看出，这个类的作用是提供基于百度翻译的服务。
  * 这个类的作用在于提供一个基于百度翻译的翻译服务，可以用于将中文文本翻译成英语文本。其中，调用百度翻译API的过程中，使用了 RestTemplate 这个Spring提供的HTTP客户端工具，使得调用过程更为方便。
@@ -29,12 +33,15 @@ public class BaiduTranslateServiceImpl implements TranslateService {
 
 	private final String appid;
 	private final String appSecret;
+	private final RestTemplate restTemplate;
 
 	/**
 	 * 初始化（构造函数）：在构造函数中，接收一个类型为 ProxyProperties.BaiduTranslateConfig 的参数 translateConfig，并从这个参数中获取了百度翻译所需要的appid和appSecret。如果这两个字段任何一个为空，将会抛出一个 BeanDefinitionValidationException 异常。
 	 * @param translateConfig
+	 * @param restTemplate 共用的http客户端
 	 */
-	public BaiduTranslateServiceImpl(ProxyProperties.BaiduTranslateConfig translateConfig) {
+	public BaiduTranslateServiceImpl(ProxyProperties.BaiduTranslateConfig translateConfig, RestTemplate restTemplate) {
+		this.restTemplate = restTemplate;
 		this.appid = translateConfig.getAppid();
 		this.appSecret = translateConfig.getAppSecret();
 		if (!CharSequenceUtil.isAllNotBlank(this.appid, this.appSecret)) {
@@ -53,23 +60,67 @@ public class BaiduTranslateServiceImpl implements TranslateService {
 		if (!containsChinese(prompt)) {
 			return prompt;
 		}
-		String salt = RandomUtil.randomNumbers(5);
-		String sign = MD5.create().digestHex(this.appid + prompt + salt + this.appSecret);
-		String url = TRANSLATE_API + "?from=zh&to=en&appid=" + this.appid + "&salt=" + salt + "&q=" + prompt + "&sign=" + sign;
 		try {
-			ResponseEntity<String> responseEntity = new RestTemplate().getForEntity(url, String.class);
-			if (responseEntity.getStatusCode() != HttpStatus.OK || CharSequenceUtil.isBlank(responseEntity.getBody())) {
-				throw new ValidateException(responseEntity.getStatusCodeValue() + " - " + responseEntity.getBody());
-			}
-			JSONObject result = new JSONObject(responseEntity.getBody());
-			if (result.has("error_code")) {
-				throw new ValidateException(result.getString("error_code") + " - " + result.getString("error_msg"));
-			}
-			return result.getJSONArray("trans_result").getJSONObject(0).getString("dst");
+			return requestTranslate(prompt).getJSONObject(0).getString("dst");
 		} catch (Exception e) {
 			log.warn("调用百度翻译失败: {}", e.getMessage());
 		}
 		return prompt;
 	}
 
+	/**
+	 * translateToEnglish(List prompts)：批量翻译。百度翻译支持一次翻译多段文本，每段占一行，所以把需要翻译的文本用换行拼接后只调用一次接口，
+	 * 按返回的行拆分结果。返回的行数对不上或调用失败时，退回逐个翻译。
+	 * @param prompts
+	 * @return
+	 */
+	@Override
+	public List<String> translateToEnglish(List<String> prompts) {
+		List<Integer> indexes = new ArrayList<>();
+		List<String> lines = new ArrayList<>();
+		for (int i = 0; i < prompts.size(); i++) {
+			if (containsChinese(prompts.get(i))) {
+				indexes.add(i);
+				lines.add(prompts.get(i).replaceAll("[\\r\\n]+", " "));
+			}
+		}
+		if (lines.size() <= 1) {
+			return TranslateService.super.translateToEnglish(prompts);
+		}
+		try {
+			JSONArray transResult = requestTranslate(String.join("\n", lines));
+			if (transResult.length() != lines.size()) {
+				throw new ValidateException("翻译结果行数不一致: " + transResult.length() + "/" + lines.size());
+			}
+			List<String> results = new ArrayList<>(prompts);
+			for (int i = 0; i < indexes.size(); i++) {
+				results.set(indexes.get(i), transResult.getJSONObject(i).getString("dst"));
+			}
+			return results;
+		} catch (Exception e) {
+			log.warn("调用百度翻译批量翻译失败: {}", e.getMessage());
+		}
+		return TranslateService.super.translateToEnglish(prompts);
+	}
+
+	/**
+	 * requestTranslate(String query)：调用百度翻译接口，返回 trans_result，每行原文对应一个结果。
+	 * @param query
+	 * @return
+	 */
+	private JSONArray requestTranslate(String query) {
+		String salt = RandomUtil.randomNumbers(5);
+		String sign = MD5.create().digestHex(this.appid + query + salt + this.appSecret);
+		String url = TRANSLATE_API + "?from=zh&to=en&appid=" + this.appid + "&salt=" + salt + "&q=" + query + "&sign=" + sign;
+		ResponseEntity<String> responseEntity = this.restTemplate.getForEntity(url, String.class);
+		if (responseEntity.getStatusCode() != HttpStatus.OK || CharSequenceUtil.isBlank(responseEntity.getBody())) {
+			throw new ValidateException(responseEntity.getStatusCodeValue() + " - " + responseEntity.getBody());
+		}
+		JSONObject result = new JSONObject(responseEntity.getBody());
+		if (result.has("error_code")) {
+			throw new ValidateException(result.getString("error_code") + " - " + result.getString("error_msg"));
+		}
+		return result.getJSONArray("trans_result");
+	}
+
 }
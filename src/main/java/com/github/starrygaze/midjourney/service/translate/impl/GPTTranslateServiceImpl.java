@@ -2,23 +2,31 @@ package com.github.starrygaze.midjourney.service.translate.impl;
 
 
 import cn.hutool.core.text.CharSequenceUtil;
+import cn.hutool.core.thread.ThreadUtil;
 import com.github.starrygaze.midjourney.ProxyProperties;
 import com.github.starrygaze.midjourney.service.translate.TranslateService;
 import com.theokanning.openai.completion.chat.ChatCompletionChoice;
 import com.theokanning.openai.completion.chat.ChatCompletionRequest;
 import com.theokanning.openai.completion.chat.ChatMessage;
+import com.theokanning.openai.client.OpenAiApi;
 import com.theokanning.openai.service.OpenAiService;
 import lombok.extern.slf4j.Slf4j;
+import okhttp3.OkHttpClient;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.support.BeanDefinitionValidationException;
+import retrofit2.Retrofit;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * 这个类叫做 GPTTranslateServiceImpl，它实现了 TranslateService 接口。根据类名和代码内容，我们可以看出这个类是用来提供基于 OpenAI GPT (Generative Pre-training Transformer) 的翻译服务。
  * 这个类提供了一个基于 OpenAI GPT 的翻译服务，可以将中文文本翻译成英语文本。尽管 OpenAI GPT 不是专门的翻译模型，但是由于其强大的语言生成和理解能力，也可以用来做一些简单的翻译任务。
  */
 @Slf4j
-public class GPTTranslateServiceImpl implements TranslateService {
+public class GPTTranslateServiceImpl implements TranslateService, DisposableBean {
 
 	/**
 	 * 初始化（构造函数）：在构造函数中，接收一个类型为 ProxyProperties.OpenaiConfig 的参数 openaiConfig，并从这个参数中获取了 OpenAI GPT 所需要的 API 密钥。
@@ -26,13 +34,21 @@ public class GPTTranslateServiceImpl implements TranslateService {
 	 */
 	private final OpenAiService openAiService;
 	private final ProxyProperties.OpenaiConfig openaiConfig;
+	private final ExecutorService translateExecutor = Executors.newFixedThreadPool(4, ThreadUtil.newNamedThreadFactory("GPTTranslate-", true));
 
-	public GPTTranslateServiceImpl(ProxyProperties.OpenaiConfig openaiConfig) {
+	public GPTTranslateServiceImpl(ProxyProperties.OpenaiConfig openaiConfig, OkHttpClient httpClient) {
 		if (CharSequenceUtil.isBlank(openaiConfig.getGptApiKey())) {
 			throw new BeanDefinitionValidationException("mj-proxy.openai.gpt-api-key未配置");
 		}
 		this.openaiConfig = openaiConfig;
-		this.openAiService = new OpenAiService(openaiConfig.getGptApiKey(), openaiConfig.getTimeout());
+		// 基于共用的http客户端派生，复用连接池和代理配置，只替换超时时间并加上鉴权头
+		String authorization = "Bearer " + openaiConfig.getGptApiKey();
+		OkHttpClient client = httpClient.newBuilder()
+				.addInterceptor(chain -> chain.proceed(chain.request().newBuilder().header("Authorization", authorization).build()))
+				.readTimeout(openaiConfig.getTimeout())
+				.build();
+		Retrofit retrofit = OpenAiService.defaultRetrofit(client, OpenAiService.defaultObjectMapper());
+		this.openAiService = new OpenAiService(retrofit.create(OpenAiApi.class), client.dispatcher().executorService());
 	}
 
 	/**
@@ -66,4 +82,26 @@ public class GPTTranslateServiceImpl implements TranslateService {
 		}
 		return prompt;
 	}
+
+	/**
+	 * translateToEnglish(List prompts)：批量翻译。chat-gpt接口没有批量翻译，这里并发调用，总耗时接近单次调用。
+	 * @param prompts
+	 * @return
+	 */
+	@Override
+	public List<String> translateToEnglish(List<String> prompts) {
+		List<CompletableFuture<String>> futures = prompts.stream()
+				.map(prompt -> containsChinese(prompt) ? CompletableFuture.supplyAsync(() -> translateToEnglish(prompt), this.translateExecutor)
+						: CompletableFuture.completedFuture(prompt))
+				.toList();
+		return futures.stream().map(CompletableFuture::join).toList();
+	}
+
+	/**
+	 * 应用关闭时停止批量翻译的线程池，不再接受新的翻译，已提交的翻译执行完后线程退出.
+	 */
+	@Override
+	public void destroy() {
+		this.translateExecutor.shutdown();
+	}
 }
\ No newline at end of file
@@ -0,0 +1,102 @@
+package com.github.starrygaze.midjourney.support;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * AdaptiveConcurrencyLimiter 是按 AIMD（加性增、乘性减）自动调整的并发限制，代替固定的并发数。
+ *
+ * 任务正常完成且耗时没有明显变长时，并发上限每轮增加约1（每次 +1/limit）；
+ * discord返回429、midjourney提示排队或并发超限、或者耗时超过预期的 latencyTolerance 倍时，上限乘以 backoffRatio。
+ * 同一个冷却期内只下调一次，避免一批请求同时被限流时把上限一下压到最低。
+ */
+public class AdaptiveConcurrencyLimiter {
+	private static final double BACKOFF_RATIO = 0.7;
+	private static final double LATENCY_TOLERANCE = 2.0;
+	private static final long DECREASE_COOLDOWN = TimeUnit.SECONDS.toMillis(5);
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final boolean adaptive;
+	private double limit;
+	private int inFlight;
+	private long lastDecreaseTime;
+
+	/**
+	 * @param initialLimit 初始并发上限
+	 * @param minLimit 最小并发上限
+	 * @param maxLimit 最大并发上限
+	 * @param adaptive 为false时固定为初始并发上限
+	 */
+	public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, boolean adaptive) {
+		this.adaptive = adaptive;
+		this.minLimit = Math.max(1, adaptive ? minLimit : initialLimit);
+		this.maxLimit = Math.max(this.minLimit, adaptive ? maxLimit : initialLimit);
+		this.limit = Math.min(Math.max(initialLimit, this.minLimit), this.maxLimit);
+	}
+
+	/**
+	 * 尝试获取一个并发许可
+	 * @return
+	 */
+	public synchronized boolean tryAcquire() {
+		if (this.inFlight >= getLimit()) {
+			return false;
+		}
+		this.inFlight++;
+		return true;
+	}
+
+	/**
+	 * 归还并发许可
+	 */
+	public synchronized void release() {
+		if (this.inFlight > 0) {
+			this.inFlight--;
+		}
+	}
+
+	/**
+	 * 任务成功完成
+	 * @param latencyMillis 实际耗时
+	 * @param expectedMillis 同类任务的预期耗时
+	 */
+	public synchronized void onSuccess(long latencyMillis, long expectedMillis) {
+		if (!this.adaptive) {
+			return;
+		}
+		if (expectedMillis > 0 && latencyMillis > expectedMillis * LATENCY_TOLERANCE) {
+			decrease();
+			return;
+		}
+		// 只有并发基本用满时才增加，避免空闲时上限无限增长
+		if (this.inFlight + 1 >= this.limit / 2) {
+			this.limit = Math.min(this.maxLimit, this.limit + 1 / this.limit);
+		}
+	}
+
+	/**
+	 * 被限流或被midjourney告知排队、并发超限
+	 */
+	public synchronized void onDropped() {
+		if (this.adaptive) {
+			decrease();
+		}
+	}
+
+	private void decrease() {
+		long now = System.currentTimeMillis();
+		if (now - this.lastDecreaseTime < DECREASE_COOLDOWN) {
+			return;
+		}
+		this.lastDecreaseTime = now;
+		this.limit = Math.max(this.minLimit, this.limit * BACKOFF_RATIO);
+	}
+
+	public synchronized int getLimit() {
+		return (int) this.limit;
+	}
+
+	public synchronized int getInFlight() {
+		return this.inFlight;
+	}
+}
@@ -0,0 +1,119 @@
+package com.github.starrygaze.midjourney.support;
+
+import lombok.Getter;
+
+/**
+ * CircuitBreaker 是按连续失败次数工作的熔断器，一个账号的一类接口一个实例。
+ *
+ * 关闭(CLOSED)时正常放行，连续失败达到 failureThreshold 次后打开(OPEN)，打开期间直接拒绝；
+ * 经过 openMillis 后进入半开(HALF_OPEN)，只放行一个试探请求，成功则关闭，失败则重新打开。
+ * 只有discord不可用类的失败(5xx、网络错误)才计入失败次数，参数错误、限流等由调用方自行处理。
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		CLOSED, HALF_OPEN, OPEN
+	}
+
+	@Getter
+	private final String name;
+	private final int failureThreshold;
+	private final long openMillis;
+	private State state = State.CLOSED;
+	private int consecutiveFailures;
+	private long openUntil;
+	private boolean probing;
+
+	public CircuitBreaker(String name, int failureThreshold, long openMillis) {
+		this.name = name;
+		this.failureThreshold = failureThreshold;
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * 请求前调用，返回false时不应发出请求.
+	 * @return
+	 */
+	public synchronized boolean tryAcquire() {
+		if (this.state == State.OPEN) {
+			if (System.currentTimeMillis() < this.openUntil) {
+				return false;
+			}
+			this.state = State.HALF_OPEN;
+			this.probing = false;
+		}
+		if (this.state == State.HALF_OPEN) {
+			if (this.probing) {
+				return false;
+			}
+			this.probing = true;
+		}
+		return true;
+	}
+
+	public synchronized void onSuccess() {
+		this.consecutiveFailures = 0;
+		this.probing = false;
+		this.state = State.CLOSED;
+	}
+
+	public synchronized void onFailure() {
+		this.probing = false;
+		if (this.state == State.HALF_OPEN || ++this.consecutiveFailures >= this.failureThreshold) {
+			this.state = State.OPEN;
+			this.openUntil = System.currentTimeMillis() + this.openMillis;
+			this.consecutiveFailures = 0;
+		}
+	}
+
+	/**
+	 * 请求结束但结果与discord是否可用无关时调用(如参数错误)，只结束半开状态下的试探.
+	 */
+	public synchronized void onIgnored() {
+		if (this.state == State.HALF_OPEN) {
+			this.state = State.CLOSED;
+		}
+		this.probing = false;
+	}
+
+	/**
+	 * 获得放行后请求没有发出时调用(如还在限流等待)，只结束半开状态下的试探，不改变状态.
+	 */
+	public synchronized void onCancelled() {
+		this.probing = false;
+	}
+
+	/**
+	 * 关闭状态下的连续失败次数，打开时清零.
+	 * @return
+	 */
+	public synchronized int getConsecutiveFailures() {
+		return this.consecutiveFailures;
+	}
+
+	public synchronized State getState() {
+		if (this.state == State.OPEN && System.currentTimeMillis() >= this.openUntil) {
+			return State.HALF_OPEN;
+		}
+		return this.state;
+	}
+
+	/**
+	 * 距离允许试探还有多少毫秒，未打开时为0.
+	 * @return
+	 */
+	public synchronized long remainingOpenMillis() {
+		return this.state == State.OPEN ? Math.max(0, this.openUntil - System.currentTimeMillis()) : 0;
+	}
+
+	/**
+	 * 熔断器打开(或半开时已有试探请求)时拒绝请求抛出的异常. 请求没有发出，等待 retryAfterMillis 后可以重试.
+	 */
+	public static class OpenException extends RetryLaterException {
+
+		public OpenException(String name, long retryAfterMillis) {
+			super("circuit breaker is open: " + name, retryAfterMillis);
+		}
+	}
+
+}
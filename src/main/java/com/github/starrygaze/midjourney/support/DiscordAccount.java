@@ -0,0 +1,71 @@
+package com.github.starrygaze.midjourney.support;
+
+import com.github.starrygaze.midjourney.service.discord.DiscordService;
+import lombok.Getter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DiscordAccount 表示一个用于提交任务的discord账号：账号自己的discord服务、并发限制，以及健康状态。
+ *
+ * 登录token失效(401、403)时账号立即标记为不健康；其他原因连续提交失败达到阈值时，暂时标记为不健康。
+ * 不健康期间不再给账号分配新任务，到期后自动恢复，下一次提交成功即清零失败计数。账号的交互接口熔断期间也视为不健康。
+ */
+public class DiscordAccount {
+	private static final int FAILURE_THRESHOLD = 3;
+	private static final long UNHEALTHY_MILLIS = TimeUnit.MINUTES.toMillis(1);
+	private static final long UNAUTHORIZED_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+	/**
+	 * 账号标识，即账号使用的频道id
+	 */
+	@Getter
+	private final String channelId;
+	@Getter
+	private final DiscordService discordService;
+	@Getter
+	private final AdaptiveConcurrencyLimiter limiter;
+
+	private final AtomicInteger consecutiveFailures = new AtomicInteger();
+	private volatile long unhealthyUntil;
+
+	public DiscordAccount(String channelId, DiscordService discordService, AdaptiveConcurrencyLimiter limiter) {
+		this.channelId = channelId;
+		this.discordService = discordService;
+		this.limiter = limiter;
+	}
+
+	public boolean isHealthy() {
+		return System.currentTimeMillis() >= this.unhealthyUntil && this.discordService.unavailableMillis() == 0;
+	}
+
+	/**
+	 * 账号的负载：执行中和排队中的任务数相对并发上限的比例.
+	 * @param waiting 排队中的任务数
+	 * @return
+	 */
+	public double load(int waiting) {
+		return (this.limiter.getInFlight() + waiting) / (double) this.limiter.getLimit();
+	}
+
+	public void onSubmitSuccess() {
+		this.consecutiveFailures.set(0);
+	}
+
+	/**
+	 * 提交失败时更新健康状态.
+	 * @param code 失败的错误码，http状态码或discord的错误码
+	 */
+	public void onSubmitFailure(int code) {
+		if (code == 401 || code == 403) {
+			this.unhealthyUntil = System.currentTimeMillis() + UNAUTHORIZED_MILLIS;
+			return;
+		}
+		if (this.consecutiveFailures.incrementAndGet() >= FAILURE_THRESHOLD) {
+			this.consecutiveFailures.set(0);
+			this.unhealthyUntil = System.currentTimeMillis() + UNHEALTHY_MILLIS;
+		}
+	}
+
+}
@@ -0,0 +1,85 @@
+package com.github.starrygaze.midjourney.support;
+
+import cn.hutool.core.text.CharSequenceUtil;
+import com.github.starrygaze.midjourney.ProxyProperties;
+import com.github.starrygaze.midjourney.service.discord.impl.DiscordServiceImpl;
+import io.micrometer.core.instrument.MeterRegistry;
+import okhttp3.OkHttpClient;
+import org.springframework.beans.factory.support.BeanDefinitionValidationException;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * DiscordAccountPool 按配置创建所有启用的discord账号，账号以频道id为标识。
+ * 配置了 mj.discord.accounts 时使用其中的账号，否则把 mj.discord 下的 guild-id、channel-id、user-token 作为唯一账号。
+ * 所有账号共用一个机器人监听消息，机器人需要加入每个账号所在的服务器，消息按频道id对应回账号。
+ */
+@Component
+public class DiscordAccountPool {
+	private final Map<String, DiscordAccount> accounts;
+	/**
+	 * 所有账号的频道id，用于在网关事件中按数字id快速过滤
+	 */
+	private final Set<Long> channelIds;
+
+	public DiscordAccountPool(ProxyProperties properties, RestTemplate restTemplate, OkHttpClient httpClient,
+			MeterRegistry meterRegistry) {
+		ProxyProperties.DiscordConfig discord = properties.getDiscord();
+		ProxyProperties.TaskQueueConfig queueConfig = properties.getQueue();
+		List<ProxyProperties.DiscordAccountConfig> configs = discord.getAccounts();
+		if (configs.isEmpty()) {
+			ProxyProperties.DiscordAccountConfig config = new ProxyProperties.DiscordAccountConfig();
+			config.setGuildId(discord.getGuildId());
+			config.setChannelId(discord.getChannelId());
+			config.setUserToken(discord.getUserToken());
+			configs = List.of(config);
+		}
+		Map<String, DiscordAccount> map = new LinkedHashMap<>();
+		for (ProxyProperties.DiscordAccountConfig config : configs) {
+			if (!config.isEnable()) {
+				continue;
+			}
+			if (CharSequenceUtil.hasBlank(config.getGuildId(), config.getChannelId(), config.getUserToken())) {
+				throw new BeanDefinitionValidationException("discord账号的guild-id、channel-id、user-token不能为空");
+			}
+			if (map.containsKey(config.getChannelId())) {
+				throw new BeanDefinitionValidationException("discord账号的channel-id重复: " + config.getChannelId());
+			}
+			int coreSize = config.getCoreSize() == null ? queueConfig.getCoreSize() : config.getCoreSize();
+			AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(coreSize, queueConfig.getMinCoreSize(),
+					Math.max(coreSize, queueConfig.getMaxCoreSize()), queueConfig.isAdaptive());
+			map.put(config.getChannelId(), new DiscordAccount(config.getChannelId(),
+					new DiscordServiceImpl(config, discord, restTemplate, httpClient, meterRegistry), limiter));
+		}
+		if (map.isEmpty()) {
+			throw new BeanDefinitionValidationException("没有启用的discord账号");
+		}
+		this.accounts = Collections.unmodifiableMap(map);
+		this.channelIds = map.keySet().stream().map(Long::valueOf).collect(Collectors.toUnmodifiableSet());
+	}
+
+	public Collection<DiscordAccount> getAccounts() {
+		return this.accounts.values();
+	}
+
+	public DiscordAccount getAccount(String channelId) {
+		return channelId == null ? null : this.accounts.get(channelId);
+	}
+
+	public boolean containsChannel(String channelId) {
+		return this.accounts.containsKey(channelId);
+	}
+
+	public boolean containsChannel(long channelId) {
+		return this.channelIds.contains(channelId);
+	}
+
+}
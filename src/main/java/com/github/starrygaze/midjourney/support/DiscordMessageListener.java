@@ -1,20 +1,35 @@
 package com.github.starrygaze.midjourney.support;
+import cn.hutool.core.text.CharSequenceUtil;
 import com.github.starrygaze.midjourney.ProxyProperties;
+import com.github.starrygaze.midjourney.entity.MessageData;
+import com.github.starrygaze.midjourney.service.task.TaskService;
 import com.github.starrygaze.midjourney.support.handle.message.DescribeMessageHandler;
+import com.github.starrygaze.midjourney.support.handle.message.ErrorMessageHandler;
 import com.github.starrygaze.midjourney.support.handle.message.ImagineMessageHandler;
 import com.github.starrygaze.midjourney.support.handle.UVMessageHandler;
-import lombok.RequiredArgsConstructor;
+import com.github.starrygaze.midjourney.util.ConvertUtils;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageEmbed;
 import net.dv8tion.jda.api.entities.MessageType;
 import net.dv8tion.jda.api.events.message.MessageReceivedEvent;
 import net.dv8tion.jda.api.events.message.MessageUpdateEvent;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+
+/**
+ * DiscordMessageListener 接收discord网关的消息事件，过滤出账号频道中midjourney机器人的消息，交给对应的消息处理器。
+ * 过滤按频道和机器人的数字id比较，不读取作者名称、不拼接字符串，频道里其他用户的消息在事件线程上直接丢弃。
+ * 事件在JDA的事件线程上只做过滤，解析、匹配任务和更新状态交给按任务分条的线程池执行，处理慢时不会拖延心跳和后续事件；
+ * 消息内容带任务ID时按任务ID分条，同一个任务的进度消息和结果消息按到达顺序处理，其他消息按消息id分条，不同任务并行处理。
+ */
 @Slf4j
 @Component
-@RequiredArgsConstructor
 public class DiscordMessageListener extends ListenerAdapter {
 
 	/**
@@ -22,28 +37,116 @@ public class DiscordMessageListener extends ListenerAdapter {
 	 */
 	private final ProxyProperties properties;
 
+	/**
+	 * 所有账号的频道，只处理这些频道的消息
+	 */
+	private final DiscordAccountPool accountPool;
+
 	/**
 	 * 不同类型的消息处理器
 	 */
 	private final ImagineMessageHandler imagineMessageHandler;
 	private final UVMessageHandler uvMessageHandler;
 	private final DescribeMessageHandler describeMessageHandler;
+	private final ErrorMessageHandler errorMessageHandler;
+
+	/**
+	 * 用于反馈midjourney的排队、并发超限提示
+	 */
+	private final TaskService taskService;
+
+	/**
+	 * 按任务ID或消息id分条执行消息处理器
+	 */
+	private final StripedExecutor eventExecutor;
+	private final Timer receivedTimer;
+	private final Timer updateTimer;
+	/**
+	 * midjourney机器人的用户id，未配置时为0，按名称过滤
+	 */
+	private final long mjBotId;
+
+	public DiscordMessageListener(ProxyProperties properties, DiscordAccountPool accountPool,
+			ImagineMessageHandler imagineMessageHandler, UVMessageHandler uvMessageHandler,
+			DescribeMessageHandler describeMessageHandler, ErrorMessageHandler errorMessageHandler, TaskService taskService,
+			MeterRegistry meterRegistry) {
+		this.properties = properties;
+		this.accountPool = accountPool;
+		this.imagineMessageHandler = imagineMessageHandler;
+		this.uvMessageHandler = uvMessageHandler;
+		this.describeMessageHandler = describeMessageHandler;
+		this.errorMessageHandler = errorMessageHandler;
+		this.taskService = taskService;
+		ProxyProperties.DiscordConfig discord = properties.getDiscord();
+		this.mjBotId = CharSequenceUtil.isBlank(discord.getMjBotId()) ? 0 : Long.parseLong(discord.getMjBotId());
+		this.eventExecutor = new StripedExecutor("DiscordEvent-", discord.getEventThreads(), discord.getEventQueueSize());
+		Gauge.builder("mj.discord.event.queue", this.eventExecutor, StripedExecutor::queueSize)
+				.description("等待处理的discord消息事件数").register(meterRegistry);
+		this.receivedTimer = Timer.builder("mj.discord.event.handle").tag("event", "received")
+				.description("discord消息事件的处理耗时").register(meterRegistry);
+		this.updateTimer = Timer.builder("mj.discord.event.handle").tag("event", "update")
+				.description("discord消息事件的处理耗时").register(meterRegistry);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		this.eventExecutor.shutdown();
+	}
+
+	/**
+	 * 把消息的处理交给任务对应的线程，记录处理耗时，处理器的异常只记录日志.
+	 * 进度消息和最终结果是不同的消息，按消息内容中的任务ID分条才能保证它们不会并行处理；没有任务ID的消息按消息id分条.
+	 * @param message
+	 * @param timer
+	 * @param handler
+	 */
+	private void dispatch(Message message, Timer timer, Runnable handler) {
+		String taskId = ConvertUtils.findTaskIdByFinalPrompt(message.getContentRaw());
+		Object stripeKey = CharSequenceUtil.isBlank(taskId) ? message.getId() : taskId;
+		this.eventExecutor.execute(stripeKey, () -> {
+			try {
+				timer.record(handler);
+			} catch (Exception e) {
+				log.error("处理discord消息失败, messageId: {}", message.getId(), e);
+			}
+		});
+	}
 
 	/**
-	 * 这个方法用于判断是否忽略并记录一条消息。如果消息的频道ID与配置中的频道ID不一致，
-	 * 或者消息的发送者并不是配置中指定的MJ Bot，那么该方法会返回true，表示忽略并记录这条消息。
+	 * 这个方法用于判断是否忽略并记录一条消息。如果消息的频道ID不是任何一个账号的频道ID，
+	 * 或者消息的发送者并不是配置中指定的MJ Bot，那么该方法会返回true，表示忽略这条消息；不忽略的消息记录调试日志。
 	 * @param message
 	 * @param eventName
 	 * @return
 	 */
 	private boolean ignoreAndLogMessage(Message message, String eventName) {
-		String channelId = message.getChannel().getId();
-		if (!this.properties.getDiscord().getChannelId().equals(channelId)) {
+		if (!this.accountPool.containsChannel(message.getChannel().getIdLong())) {
 			return true;
 		}
-		String authorName = message.getAuthor().getName();
-		log.debug("{} - {}: {}", eventName, authorName, message.getContentRaw());
-		return !this.properties.getDiscord().getMjBotName().equals(authorName);
+		boolean fromMjBot = this.mjBotId != 0 ? message.getAuthor().getIdLong() == this.mjBotId
+				: this.properties.getDiscord().getMjBotName().equals(message.getAuthor().getName());
+		if (!fromMjBot) {
+			return true;
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("{} - {}: {}", eventName, message.getAuthor().getName(), message.getContentRaw());
+		}
+		return false;
+	}
+
+	/**
+	 * 判断是否是midjourney的排队提示(Job queued)或队列已满、并发超限的提示，这类提示说明提交的并发超过了账号的订阅级别。
+	 * @param message
+	 * @return
+	 */
+	private boolean isBackpressureMessage(Message message) {
+		if (message.getEmbeds().isEmpty()) {
+			return false;
+		}
+		MessageEmbed embed = message.getEmbeds().get(0);
+		String title = embed.getTitle();
+		return title != null && (title.startsWith("Job queued") || title.startsWith("Queue full")
+				|| title.contains("concurrent"));
 	}
 
 	/**
@@ -57,10 +160,16 @@ public class DiscordMessageListener extends ListenerAdapter {
 		if (ignoreAndLogMessage(message, "消息变更")) {
 			return;
 		}
-		if (message.getInteraction() != null && "describe".equals(message.getInteraction().getName())) {
-			this.describeMessageHandler.onMessageUpdate(message);
+		handleUpdate(message);
+	}
+
+	private void handleUpdate(Message message) {
+		if (this.errorMessageHandler.isErrorMessage(message)) {
+			dispatch(message, this.updateTimer, () -> this.errorMessageHandler.onMessageUpdate(message));
+		} else if (message.getInteraction() != null && "describe".equals(message.getInteraction().getName())) {
+			dispatch(message, this.updateTimer, () -> this.describeMessageHandler.onMessageUpdate(message));
 		} else {
-			this.uvMessageHandler.onMessageUpdate(message);
+			dispatch(message, this.updateTimer, () -> this.uvMessageHandler.onMessageUpdate(message));
 		}
 	}
 
@@ -68,6 +177,7 @@ public class DiscordMessageListener extends ListenerAdapter {
 	 * 当收到一条新的消息时，会触发这个方法。它根据消息的类型和内容，调用相应的处理器进行处理。
 	 * 如果消息类型是SLASH_COMMAND或DEFAULT，它将调用imagineMessageHandler处理器；
 	 * 如果消息类型是INLINE_REPLY且包含一个参考消息，那么将调用uvMessageHandler处理器。
+	 * midjourney的错误提示交给errorMessageHandler，立即让对应的任务失败；队列已满的提示既反馈并发，也让被拒绝的任务失败。
 	 * @param event
 	 */
 	@Override
@@ -76,10 +186,44 @@ public class DiscordMessageListener extends ListenerAdapter {
 		if (ignoreAndLogMessage(message, "消息接收")) {
 			return;
 		}
-		if (MessageType.SLASH_COMMAND.equals(message.getType()) || MessageType.DEFAULT.equals(message.getType())) {
-			this.imagineMessageHandler.onMessageReceived(message);
+		if (isBackpressureMessage(message)) {
+			this.taskService.reportBackpressure(message.getChannel().getId(), message.getEmbeds().get(0).getTitle());
+			if (!this.errorMessageHandler.isErrorMessage(message)) {
+				return;
+			}
+		}
+		handleReceived(message);
+	}
+
+	private void handleReceived(Message message) {
+		if (this.errorMessageHandler.isErrorMessage(message)) {
+			dispatch(message, this.receivedTimer, () -> this.errorMessageHandler.onMessageReceived(message));
+		} else if (MessageType.SLASH_COMMAND.equals(message.getType()) || MessageType.DEFAULT.equals(message.getType())) {
+			dispatch(message, this.receivedTimer, () -> this.imagineMessageHandler.onMessageReceived(message));
 		} else if (MessageType.INLINE_REPLY.equals(message.getType()) && message.getReferencedMessage() != null) {
-			this.uvMessageHandler.onMessageReceived(message);
+			dispatch(message, this.receivedTimer, () -> this.uvMessageHandler.onMessageReceived(message));
+		}
+	}
+
+	/**
+	 * replay(Message message)：补偿处理从频道历史中查到的消息，可能错过了它的接收或变更事件。
+	 * 历史中的消息是当前的最终内容：图生文的交互消息和带进度的消息按变更处理，其他按接收处理；不再反馈排队提示，它们早已过时，但队列已满等错误提示仍会让对应的任务失败。
+	 * 和实时事件一样按任务分条处理，处理器只匹配执行中的任务，已经处理过的消息不会重复生效。
+	 * @param message
+	 */
+	public void replay(Message message) {
+		if (ignoreAndLogMessage(message, "消息补偿")) {
+			return;
+		}
+		if (message.getInteraction() != null && "describe".equals(message.getInteraction().getName())) {
+			handleUpdate(message);
+			return;
+		}
+		MessageData data = ConvertUtils.parseContent(message.getContentRaw());
+		if (data != null && data.getProgress() != null) {
+			handleUpdate(message);
+		} else if (!isBackpressureMessage(message) || this.errorMessageHandler.isErrorMessage(message)) {
+			handleReceived(message);
 		}
 	}
 
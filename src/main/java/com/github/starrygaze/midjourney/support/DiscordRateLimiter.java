@@ -0,0 +1,168 @@
+package com.github.starrygaze.midjourney.support;
+
+import lombok.extern.slf4j.Slf4j;
+import org.json.JSONObject;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpStatusCodeException;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * DiscordRateLimiter 是按discord限流桶(bucket)工作的请求调度器，一个账号(token)一个实例。
+ *
+ * 每次响应都从 X-RateLimit-Bucket、X-RateLimit-Limit、X-RateLimit-Remaining、X-RateLimit-Reset-After 请求头学习接口所属的桶和剩余次数，
+ * 桶的次数用完后，后续请求不发出，抛出 RetryLaterException 告知需要等待到桶重置；收到429时记下 retry_after，同样抛出 RetryLaterException，
+ * global 为true时所有接口一起等待。还没有学到限流信息的接口不做限制。
+ * 调度器自己从不睡眠等待，调用方(任务派发)把任务放回队列，在时间轮上到期后再派发，派发线程不会被限流阻塞。
+ */
+@Slf4j
+public class DiscordRateLimiter {
+	private static final long POLL_MILLIS = 50;
+
+	/**
+	 * 接口 -> 桶的标识
+	 */
+	private final Map<String, String> routeBuckets = new ConcurrentHashMap<>();
+	/**
+	 * 桶的标识(未学到时为接口本身) -> 桶
+	 */
+	private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+	private volatile long globalResetAt;
+
+	/**
+	 * 在限流桶允许时执行请求.
+	 * @param route 接口，如 "POST /interactions"
+	 * @param request 实际的请求
+	 * @return 请求的响应
+	 * @throws RetryLaterException 桶的次数已用完(请求没有发出)或被限流(429)，需要等待后重试
+	 */
+	public <T> ResponseEntity<T> execute(String route, Supplier<ResponseEntity<T>> request) {
+		long wait = waitMillis(route, true);
+		if (wait > 0) {
+			throw new RetryLaterException(wait);
+		}
+		try {
+			ResponseEntity<T> response = request.get();
+			update(route, response.getHeaders());
+			return response;
+		} catch (HttpClientErrorException.TooManyRequests e) {
+			long retryAfter = onRateLimited(route, e);
+			log.debug("discord rate limited, route: {}, retry after {}ms", route, retryAfter);
+			throw new RetryLaterException(retryAfter, e);
+		} catch (HttpStatusCodeException e) {
+			update(route, e.getResponseHeaders());
+			throw e;
+		}
+	}
+
+	/**
+	 * 接口现在发出请求需要等待多少毫秒，不占用次数，0表示可以立即发出.
+	 * @param route 接口
+	 * @return
+	 */
+	public long waitMillis(String route) {
+		return waitMillis(route, false);
+	}
+
+	private Bucket bucket(String route) {
+		String bucketId = this.routeBuckets.getOrDefault(route, route);
+		return this.buckets.computeIfAbsent(bucketId, k -> new Bucket());
+	}
+
+	private long waitMillis(String route, boolean reserve) {
+		long now = System.currentTimeMillis();
+		long wait = this.globalResetAt - now;
+		if (wait > 0) {
+			return wait;
+		}
+		return bucket(route).reserve(now, reserve);
+	}
+
+	private void update(String route, HttpHeaders headers) {
+		if (headers == null) {
+			return;
+		}
+		String bucketId = headers.getFirst("X-RateLimit-Bucket");
+		String remaining = headers.getFirst("X-RateLimit-Remaining");
+		String resetAfter = headers.getFirst("X-RateLimit-Reset-After");
+		if (bucketId == null || remaining == null || resetAfter == null) {
+			return;
+		}
+		this.routeBuckets.put(route, bucketId);
+		String limit = headers.getFirst("X-RateLimit-Limit");
+		bucket(route).update(limit == null ? 1 : Integer.parseInt(limit), Integer.parseInt(remaining),
+				secondsToMillis(Double.parseDouble(resetAfter)));
+	}
+
+	private long onRateLimited(String route, HttpClientErrorException e) {
+		long retryAfter;
+		boolean global;
+		try {
+			JSONObject body = new JSONObject(e.getResponseBodyAsString());
+			retryAfter = secondsToMillis(body.getDouble("retry_after"));
+			global = body.optBoolean("global");
+		} catch (Exception je) {
+			HttpHeaders headers = e.getResponseHeaders();
+			String header = headers == null ? null : headers.getFirst(HttpHeaders.RETRY_AFTER);
+			retryAfter = header == null ? TimeUnit.SECONDS.toMillis(1) : secondsToMillis(Double.parseDouble(header));
+			global = headers != null && "true".equalsIgnoreCase(headers.getFirst("X-RateLimit-Global"));
+		}
+		if (global) {
+			this.globalResetAt = System.currentTimeMillis() + retryAfter;
+		} else {
+			update(route, e.getResponseHeaders());
+			bucket(route).exhaust(retryAfter);
+		}
+		return retryAfter;
+	}
+
+	private static long secondsToMillis(double seconds) {
+		return (long) Math.ceil(seconds * 1000);
+	}
+
+	/**
+	 * 限流桶：limit为0表示还没有学到限流信息，不做限制；resetAt为0表示已重置但还不知道下一次的重置时间
+	 */
+	private static final class Bucket {
+		private int limit;
+		private int remaining;
+		private long resetAt;
+
+		/**
+		 * 检查并按需预占一次请求次数.
+		 * @param reserve 可以发出请求时是否占用一次次数
+		 * @return 0表示可以立即发出请求，否则为需要等待的毫秒数
+		 */
+		synchronized long reserve(long now, boolean reserve) {
+			if (this.resetAt > 0 && now >= this.resetAt) {
+				this.remaining = this.limit;
+				this.resetAt = 0;
+			}
+			if (this.limit == 0 || this.remaining > 0) {
+				if (reserve) {
+					this.remaining--;
+				}
+				return 0;
+			}
+			return this.resetAt > 0 ? this.resetAt - now : POLL_MILLIS;
+		}
+
+		synchronized void update(int limit, int remaining, long resetAfterMillis) {
+			this.limit = limit;
+			this.remaining = remaining;
+			this.resetAt = System.currentTimeMillis() + resetAfterMillis;
+		}
+
+		synchronized void exhaust(long retryAfterMillis) {
+			this.limit = Math.max(this.limit, 1);
+			this.remaining = 0;
+			this.resetAt = System.currentTimeMillis() + retryAfterMillis;
+		}
+	}
+
+}
@@ -5,6 +5,9 @@ import com.neovisionaries.ws.client.ProxySettings;
 import com.neovisionaries.ws.client.WebSocketFactory;
 import net.dv8tion.jda.api.requests.GatewayIntent;
 import net.dv8tion.jda.api.sharding.DefaultShardManagerBuilder;
+import net.dv8tion.jda.api.utils.ChunkingFilter;
+import net.dv8tion.jda.api.utils.MemberCachePolicy;
+import okhttp3.OkHttpClient;
 import org.apache.logging.log4j.util.Strings;
 import org.springframework.boot.context.event.ApplicationStartedEvent;
 import org.springframework.context.ApplicationListener;
@@ -31,21 +34,43 @@ public class DiscordStarter implements ApplicationListener<ApplicationStartedEve
 	@Resource
 	private DiscordMessageListener discordMessageListener;
 
+	/**
+	 * 网关重连后补偿错过的消息
+	 */
+	@Resource
+	private TaskReconciler taskReconciler;
+
+	/**
+	 * 共用的http客户端，已包含代理配置
+	 */
+	@Resource
+	private OkHttpClient httpClient;
+
 	@Override
 	public void onApplicationEvent(ApplicationStartedEvent event) {
 		//创建 DefaultShardManagerBuilder: 该构造器用于创建Discord Bot的Shard Manager，Shard Manager负责管理Bot的所有shard。
 		//在创建构造器时，需要指定Bot的Token以及Gateway Intents。Gateway Intents是Bot需要的权限，本例中需要的权限有GUILD_MESSAGES和MESSAGE_CONTENT。
-		DefaultShardManagerBuilder builder = DefaultShardManagerBuilder.createDefault(this.properties.getDiscord().getBotToken(),
-				GatewayIntent.GUILD_MESSAGES, GatewayIntent.MESSAGE_CONTENT);
-		//添加事件监听器: 在Shard Manager中添加事件监听器，这里添加的是DiscordMessageListener。这意味着当Discord的消息事件发生时，将会由discordMessageListener进行处理。
-		builder.addEventListeners(this.discordMessageListener);
-		// 配置代理: 如果在应用的配置中设置了代理，那么会配置Java的系统属性和WebSocket的代理设置，以使得Bot的网络请求通过指定的代理服务器。
+		DefaultShardManagerBuilder builder;
+		if (this.properties.getDiscord().isLeanGateway()) {
+			// 精简网关模式: 只需要消息事件，关闭所有可选的实体缓存，不缓存成员、不请求成员列表，
+			// large_threshold设为最小值，服务器的初始数据中不附带在线成员列表，减少大服务器下的内存和事件开销。
+			builder = DefaultShardManagerBuilder.createLight(this.properties.getDiscord().getBotToken(),
+					GatewayIntent.GUILD_MESSAGES, GatewayIntent.MESSAGE_CONTENT)
+					.setMemberCachePolicy(MemberCachePolicy.NONE)
+					.setChunkingFilter(ChunkingFilter.NONE)
+					.setLargeThreshold(50);
+		} else {
+			builder = DefaultShardManagerBuilder.createDefault(this.properties.getDiscord().getBotToken(),
+					GatewayIntent.GUILD_MESSAGES, GatewayIntent.MESSAGE_CONTENT);
+		}
+		//添加事件监听器: 在Shard Manager中添加事件监听器，这里添加的是DiscordMessageListener。这意味着当Discord的消息事件发生时，将会由discordMessageListener进行处理；
+		//TaskReconciler在网关重连后补偿断线期间错过的消息。
+		builder.addEventListeners(this.discordMessageListener, this.taskReconciler);
+		// 配置http客户端: 机器人的接口请求使用共用的http客户端，复用连接池和代理配置。
+		builder.setHttpClient(this.httpClient);
+		// 配置代理: 如果在应用的配置中设置了代理，那么会配置WebSocket的代理设置，以使得Bot的网关连接通过指定的代理服务器。
 		ProxyProperties.ProxyConfig proxy = this.properties.getProxy();
 		if (Strings.isNotBlank(proxy.getHost())) {
-			System.setProperty("http.proxyHost", proxy.getHost());
-			System.setProperty("http.proxyPort", String.valueOf(proxy.getPort()));
-			System.setProperty("https.proxyHost", proxy.getHost());
-			System.setProperty("https.proxyPort", String.valueOf(proxy.getPort()));
 			WebSocketFactory webSocketFactory = new WebSocketFactory();
 			ProxySettings proxySettings = webSocketFactory.getProxySettings();
 			proxySettings.setHost(proxy.getHost());
@@ -0,0 +1,139 @@
+package com.github.starrygaze.midjourney.support;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * FairTaskQueue 是按调用方加权公平调度的等待队列。
+ *
+ * 队列先按优先级分组，数值小的组完全优先；同一组内每个调用方相当于一个子队列，按加权公平排队（WFQ）：
+ * 每个元素入队时计算虚拟完成时间 finish = max(组的虚拟时间, 该调用方上一个元素的finish) + 1 / weight，出队时取 finish 最小的元素。
+ * 这样一个调用方一次提交很多任务，只会排在自己的子队列里，不会让其他调用方一直等待；权重为2的调用方获得的派发机会是权重为1的两倍。
+ *
+ * 元素的位置就是在它之前出队的元素个数，由排序规则直接算出（之后新到的更高优先级元素仍可能插队）。
+ * @param <T>
+ */
+public class FairTaskQueue<T> {
+
+	/**
+	 * 同一优先级内的出队顺序：虚拟完成时间小的优先，相同时先入队的优先
+	 */
+	private static final Comparator<Node<?>> ORDER = Comparator.<Node<?>>comparingDouble(Node::finish)
+			.thenComparingLong(Node::sequence);
+
+	private final int capacity;
+
+	private final TreeMap<Integer, Lane<T>> lanes = new TreeMap<>();
+
+	private int size;
+
+	private long sequence;
+
+	public FairTaskQueue(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * 入队
+	 * @param item
+	 * @param caller 调用方标识
+	 * @param priority 优先级，数值小的优先
+	 * @param weight 调用方权重
+	 * @return 队列已满时返回false
+	 */
+	public synchronized boolean offer(T item, String caller, int priority, int weight) {
+		if (this.size >= this.capacity) {
+			return false;
+		}
+		Lane<T> lane = this.lanes.computeIfAbsent(priority, k -> new Lane<>());
+		double start = Math.max(lane.virtualTime, lane.lastFinish.getOrDefault(caller, 0d));
+		double finish = start + 1d / Math.max(weight, 1);
+		lane.lastFinish.put(caller, finish);
+		lane.queue.add(new Node<>(item, start, finish, this.sequence++));
+		this.size++;
+		return true;
+	}
+
+	/**
+	 * 取出下一个应当派发的元素
+	 * @return 队列为空时返回null
+	 */
+	public synchronized T poll() {
+		Map.Entry<Integer, Lane<T>> first = this.lanes.firstEntry();
+		if (first == null) {
+			return null;
+		}
+		Lane<T> lane = first.getValue();
+		Node<T> node = lane.queue.poll();
+		this.size--;
+		if (lane.queue.isEmpty()) {
+			this.lanes.remove(first.getKey());
+		} else {
+			lane.virtualTime = Math.max(lane.virtualTime, node.start());
+			lane.lastFinish.values().removeIf(finish -> finish <= lane.virtualTime);
+		}
+		return node.item();
+	}
+
+	/**
+	 * 元素当前的排队位置
+	 * @param item
+	 * @return 前面还有多少个元素，不在队列中时返回-1
+	 */
+	public int position(T item) {
+		return position(i -> i == item);
+	}
+
+	/**
+	 * 第一个满足条件的元素当前的排队位置
+	 * @param matcher
+	 * @return 前面还有多少个元素，不在队列中时返回-1
+	 */
+	public synchronized int position(Predicate<T> matcher) {
+		int ahead = 0;
+		for (Lane<T> lane : this.lanes.values()) {
+			Node<T> target = null;
+			for (Node<T> node : lane.queue) {
+				if (matcher.test(node.item())) {
+					target = node;
+					break;
+				}
+			}
+			if (target == null) {
+				ahead += lane.queue.size();
+				continue;
+			}
+			for (Node<T> node : lane.queue) {
+				if (ORDER.compare(node, target) < 0) {
+					ahead++;
+				}
+			}
+			return ahead;
+		}
+		return -1;
+	}
+
+	public synchronized int size() {
+		return this.size;
+	}
+
+	public synchronized boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * 同一优先级的分组
+	 */
+	private static class Lane<T> {
+		private final PriorityQueue<Node<T>> queue = new PriorityQueue<>(ORDER);
+		private final Map<String, Double> lastFinish = new HashMap<>();
+		private double virtualTime;
+	}
+
+	private record Node<T>(T item, double start, double finish, long sequence) {
+	}
+}
@@ -0,0 +1,136 @@
+package com.github.starrygaze.midjourney.support;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HashedTimingWheel 是哈希时间轮定时器，用于任务超时这类数量多、大多会被取消的定时事件。
+ *
+ * 时间轮有 wheelSize 个槽，每 tickMillis 前进一格；定时事件按到期的格数放进对应的槽，超过一圈的记录剩余圈数。
+ * 添加和取消都是 O(1)，每一格只处理当前槽内的事件，没有周期性的全量扫描，到期误差不超过一格。
+ * 到期的回调在时间轮的线程中执行，回调里不应做耗时操作。
+ */
+@Slf4j
+public class HashedTimingWheel {
+
+	private final long tickMillis;
+	private final Queue<Timeout>[] wheel;
+	private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+	private final Thread worker;
+	private final long startTime;
+	private volatile boolean running = true;
+	private long tick;
+
+	@SuppressWarnings("unchecked")
+	public HashedTimingWheel(String name, long tickMillis, int wheelSize) {
+		this.tickMillis = tickMillis;
+		this.wheel = new Queue[wheelSize];
+		for (int i = 0; i < wheelSize; i++) {
+			this.wheel[i] = new LinkedList<>();
+		}
+		this.startTime = System.currentTimeMillis();
+		this.worker = new Thread(this::run, name);
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * 添加一个定时事件
+	 * @param task 到期时执行的回调
+	 * @param delay 延迟
+	 * @param unit 延迟的单位
+	 * @return 可用于取消的句柄
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, System.currentTimeMillis() + unit.toMillis(delay));
+		this.pendingTimeouts.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * 停止时间轮，未到期的事件不再执行
+	 */
+	public void stop() {
+		this.running = false;
+		this.worker.interrupt();
+	}
+
+	private void run() {
+		while (this.running) {
+			long deadline = this.startTime + (this.tick + 1) * this.tickMillis;
+			long sleepMillis = deadline - System.currentTimeMillis();
+			if (sleepMillis > 0) {
+				try {
+					Thread.sleep(sleepMillis);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			transferPendingTimeouts();
+			expireTimeouts(this.wheel[(int) (this.tick % this.wheel.length)]);
+			this.tick++;
+		}
+	}
+
+	/**
+	 * 把新添加的事件放入对应的槽
+	 */
+	private void transferPendingTimeouts() {
+		Timeout timeout;
+		while ((timeout = this.pendingTimeouts.poll()) != null) {
+			if (timeout.cancelled) {
+				continue;
+			}
+			long expireTick = Math.max((timeout.deadline - this.startTime) / this.tickMillis, this.tick);
+			timeout.remainingRounds = (expireTick - this.tick) / this.wheel.length;
+			this.wheel[(int) (expireTick % this.wheel.length)].add(timeout);
+		}
+	}
+
+	private void expireTimeouts(Queue<Timeout> bucket) {
+		Iterator<Timeout> iterator = bucket.iterator();
+		while (iterator.hasNext()) {
+			Timeout timeout = iterator.next();
+			if (timeout.cancelled) {
+				iterator.remove();
+			} else if (timeout.remainingRounds <= 0) {
+				iterator.remove();
+				try {
+					timeout.task.run();
+				} catch (Exception e) {
+					log.warn("定时事件执行失败", e);
+				}
+			} else {
+				timeout.remainingRounds--;
+			}
+		}
+	}
+
+	/**
+	 * 定时事件的句柄
+	 */
+	public static final class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private long remainingRounds;
+		private volatile boolean cancelled;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * 取消事件，已取消的事件会在时间轮经过它的槽时被移除
+		 */
+		public void cancel() {
+			this.cancelled = true;
+		}
+	}
+}
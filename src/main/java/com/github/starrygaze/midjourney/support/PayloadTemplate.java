@@ -0,0 +1,186 @@
+package com.github.starrygaze.midjourney.support;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * PayloadTemplate 是预编译的接口参数模板，用于 api-params 下的json模板。
+ *
+ * 模板在启动时按 $变量名 切分成固定片段和变量，固定片段预先编码为UTF-8字节；渲染时依次写入固定片段和转义后的变量值，
+ * 不再对整个json做多次 String.replace，也不需要解析成 JSONObject 再序列化。变量只能出现在json字符串内，值按json字符串规则转义。
+ * 渲染使用线程内复用的缓冲区，每次请求只分配一次结果数组。
+ */
+public final class PayloadTemplate {
+	private static final Pattern VARIABLE_PATTERN = Pattern.compile("\\$([a-z_]+)");
+	private static final ThreadLocal<Buffer> BUFFER = ThreadLocal.withInitial(Buffer::new);
+
+	/**
+	 * 固定片段，比变量多一个
+	 */
+	private final String[] literals;
+	private final String[] variables;
+	private final byte[][] literalBytes;
+
+	private PayloadTemplate(List<String> literals, List<String> variables) {
+		this.literals = literals.toArray(new String[0]);
+		this.variables = variables.toArray(new String[0]);
+		this.literalBytes = Arrays.stream(this.literals).map(s -> s.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new);
+	}
+
+	/**
+	 * 编译模板.
+	 * @param template 包含 $变量名 的json
+	 * @return
+	 */
+	public static PayloadTemplate compile(String template) {
+		List<String> literals = new ArrayList<>();
+		List<String> variables = new ArrayList<>();
+		Matcher matcher = VARIABLE_PATTERN.matcher(template);
+		int start = 0;
+		while (matcher.find()) {
+			literals.add(template.substring(start, matcher.start()));
+			variables.add(matcher.group(1));
+			start = matcher.end();
+		}
+		literals.add(template.substring(start));
+		return new PayloadTemplate(literals, variables);
+	}
+
+	/**
+	 * 把部分变量固定为常量，返回新的模板，如账号的服务器id和频道id.
+	 * @param values 变量名 -> 值
+	 * @return
+	 */
+	public PayloadTemplate bind(Map<String, String> values) {
+		List<String> literals = new ArrayList<>();
+		List<String> variables = new ArrayList<>();
+		StringBuilder literal = new StringBuilder(this.literals[0]);
+		for (int i = 0; i < this.variables.length; i++) {
+			String value = values.get(this.variables[i]);
+			if (value == null) {
+				literals.add(literal.toString());
+				variables.add(this.variables[i]);
+				literal.setLength(0);
+			} else {
+				literal.append(escape(value));
+			}
+			literal.append(this.literals[i + 1]);
+		}
+		literals.add(literal.toString());
+		return new PayloadTemplate(literals, variables);
+	}
+
+	/**
+	 * 渲染模板.
+	 * @param values 变量名 -> 值，必须包含模板中所有未固定的变量
+	 * @return UTF-8编码的json
+	 */
+	public byte[] render(Map<String, String> values) {
+		Buffer buffer = BUFFER.get();
+		buffer.reset();
+		buffer.write(this.literalBytes[0]);
+		for (int i = 0; i < this.variables.length; i++) {
+			String value = values.get(this.variables[i]);
+			if (value == null) {
+				throw new IllegalArgumentException("missing template variable: " + this.variables[i]);
+			}
+			buffer.writeEscaped(value);
+			buffer.write(this.literalBytes[i + 1]);
+		}
+		return buffer.toByteArray();
+	}
+
+	private static String escape(String value) {
+		Buffer buffer = new Buffer();
+		buffer.writeEscaped(value);
+		return new String(buffer.bytes, 0, buffer.size, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * 可复用的字节缓冲区，按json字符串规则转义并直接编码为UTF-8
+	 */
+	private static final class Buffer {
+		private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+		private byte[] bytes = new byte[2048];
+		private int size;
+
+		void reset() {
+			this.size = 0;
+		}
+
+		void write(byte[] src) {
+			ensure(src.length);
+			System.arraycopy(src, 0, this.bytes, this.size, src.length);
+			this.size += src.length;
+		}
+
+		void writeEscaped(String value) {
+			// 每个字符最多编码为6个字节(\\u00XX 或 代理对的两个字符共4个字节)
+			ensure(value.length() * 6);
+			byte[] b = this.bytes;
+			int n = this.size;
+			for (int i = 0; i < value.length(); i++) {
+				char c = value.charAt(i);
+				if (c == '"' || c == '\\') {
+					b[n++] = '\\';
+					b[n++] = (byte) c;
+				} else if (c < 0x20) {
+					n = writeControl(b, n, c);
+				} else if (c < 0x80) {
+					b[n++] = (byte) c;
+				} else if (c < 0x800) {
+					b[n++] = (byte) (0xc0 | (c >> 6));
+					b[n++] = (byte) (0x80 | (c & 0x3f));
+				} else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, value.charAt(++i));
+					b[n++] = (byte) (0xf0 | (cp >> 18));
+					b[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+					b[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+					b[n++] = (byte) (0x80 | (cp & 0x3f));
+				} else if (Character.isSurrogate(c)) {
+					b[n++] = '?';
+				} else {
+					b[n++] = (byte) (0xe0 | (c >> 12));
+					b[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+					b[n++] = (byte) (0x80 | (c & 0x3f));
+				}
+			}
+			this.size = n;
+		}
+
+		private static int writeControl(byte[] b, int n, char c) {
+			b[n++] = '\\';
+			switch (c) {
+				case '\n' -> b[n++] = 'n';
+				case '\r' -> b[n++] = 'r';
+				case '\t' -> b[n++] = 't';
+				case '\b' -> b[n++] = 'b';
+				case '\f' -> b[n++] = 'f';
+				default -> {
+					b[n++] = 'u';
+					b[n++] = '0';
+					b[n++] = '0';
+					b[n++] = HEX[c >> 4];
+					b[n++] = HEX[c & 0xf];
+				}
+			}
+			return n;
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(this.bytes, this.size);
+		}
+
+		private void ensure(int extra) {
+			if (this.size + extra > this.bytes.length) {
+				this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.size + extra));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.github.starrygaze.midjourney.support;
+
+import lombok.Getter;
+
+/**
+ * RetryLaterException 表示discord请求没有发出，或者确定没有被discord处理，需要等待 delayMillis 后再重试.
+ *
+ * 请求方不在当前线程上等待，而是把异常抛给派发任务的一方，由它把任务放回等待队列，在时间轮上登记到期后的恢复派发.
+ * cause为空表示请求根本没有发出(如限流桶的次数已用完)，否则是请求失败后允许的重试，cause为失败的原因.
+ */
+@Getter
+public class RetryLaterException extends RuntimeException {
+
+	private final long delayMillis;
+
+	public RetryLaterException(long delayMillis) {
+		super("retry after " + delayMillis + "ms");
+		this.delayMillis = delayMillis;
+	}
+
+	protected RetryLaterException(String message, long delayMillis) {
+		super(message);
+		this.delayMillis = delayMillis;
+	}
+
+	public RetryLaterException(long delayMillis, Throwable cause) {
+		super("retry after " + delayMillis + "ms: " + cause.getMessage(), cause);
+		this.delayMillis = delayMillis;
+	}
+
+	/**
+	 * 请求是否已经发出过，发出过的请求按失败计入重试次数.
+	 * @return
+	 */
+	public boolean isAttempted() {
+		return getCause() != null;
+	}
+
+}
@@ -0,0 +1,73 @@
+package com.github.starrygaze.midjourney.support;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * StripedExecutor 是按key分条执行任务的线程池：同一个key的任务总是交给同一个单线程的条带，按提交顺序依次执行，不同key的任务并行执行。
+ *
+ * 每个条带的等待队列有界，队列满时提交方阻塞等待，而不是丢弃任务或由提交方直接执行(会打乱同一个key的顺序)。
+ */
+@Slf4j
+public class StripedExecutor {
+	private final ThreadPoolTaskExecutor[] stripes;
+
+	public StripedExecutor(String threadNamePrefix, int stripeCount, int queueCapacity) {
+		this.stripes = new ThreadPoolTaskExecutor[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+			executor.setCorePoolSize(1);
+			executor.setMaxPoolSize(1);
+			executor.setQueueCapacity(queueCapacity);
+			executor.setThreadNamePrefix(threadNamePrefix + i + "-");
+			executor.setRejectedExecutionHandler(StripedExecutor::blockUntilQueued);
+			executor.initialize();
+			this.stripes[i] = executor;
+		}
+	}
+
+	/**
+	 * 把任务交给key对应的条带执行.
+	 * @param key 决定执行顺序的key，相同key的任务按提交顺序执行
+	 * @param task
+	 */
+	public void execute(Object key, Runnable task) {
+		int index = Math.floorMod(key.hashCode(), this.stripes.length);
+		this.stripes[index].execute(task);
+	}
+
+	/**
+	 * 所有条带中等待执行的任务数.
+	 * @return
+	 */
+	public int queueSize() {
+		int size = 0;
+		for (ThreadPoolTaskExecutor stripe : this.stripes) {
+			size += stripe.getThreadPoolExecutor().getQueue().size();
+		}
+		return size;
+	}
+
+	public void shutdown() {
+		for (ThreadPoolTaskExecutor stripe : this.stripes) {
+			stripe.shutdown();
+		}
+	}
+
+	private static void blockUntilQueued(Runnable task, ThreadPoolExecutor executor) {
+		if (executor.isShutdown()) {
+			throw new RejectedExecutionException("executor has been shut down");
+		}
+		log.warn("striped executor queue is full, caller blocked: {}", Thread.currentThread().getName());
+		try {
+			executor.getQueue().put(task);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RejectedExecutionException("interrupted while waiting for queue", e);
+		}
+	}
+
+}
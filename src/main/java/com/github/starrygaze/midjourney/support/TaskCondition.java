@@ -18,6 +18,8 @@ import java.util.function.Predicate;
  * TaskCondition类实现了test(Task task)方法，这是Predicate接口的方法，用于对传入的Task对象进行测试。在这个方法中，它检查任务是否满足所有的条件。
  * 如果任何一个条件不满足，就返回false，表示这个任务不满足条件。如果所有的条件都满足，就返回true，表示这个任务满足条件。
  *
+ * 在执行中任务登记表（TaskRegistry）中查询时，会先按 key、relatedTaskId、messageId、statusSet 中候选集最小的索引缩小范围，再用 test 方法校验。
+ *
  * 这个类在设计模式上使用了Builder模式（通过@Accessors(chain = true)注解实现），使得创建和使用TaskCondition对象更加方便。例如，可以通过链式调用来设置条件：
  */
 @Data
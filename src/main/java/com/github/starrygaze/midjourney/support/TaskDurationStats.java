@@ -0,0 +1,125 @@
+package com.github.starrygaze.midjourney.support;
+
+import com.github.starrygaze.midjourney.enums.Action;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TaskDurationStats 统计任务的执行耗时和队列的消化速度，用于估算排队任务的等待时间和队列已满时的重试时间。
+ *
+ * 每种任务类型保留最近 SAMPLE_SIZE 次成功任务的耗时（从提交到discord到完成），按分位数估算；
+ * 同时记录最近 SAMPLE_SIZE 次出队的时间，按最近 DRAIN_WINDOW 内的出队次数计算消化速度。
+ */
+public class TaskDurationStats {
+	private static final int SAMPLE_SIZE = 128;
+	private static final long DRAIN_WINDOW = TimeUnit.MINUTES.toMillis(10);
+
+	/**
+	 * 没有样本时各任务类型的默认耗时
+	 */
+	private static final Map<Action, Long> DEFAULT_DURATIONS = new EnumMap<>(Map.of(
+			Action.IMAGINE, TimeUnit.SECONDS.toMillis(60),
+			Action.UPSCALE, TimeUnit.SECONDS.toMillis(15),
+			Action.VARIATION, TimeUnit.SECONDS.toMillis(60),
+			Action.RESET, TimeUnit.SECONDS.toMillis(60),
+			Action.DESCRIBE, TimeUnit.SECONDS.toMillis(10)));
+
+	private final Map<Action, Ring> durations = new EnumMap<>(Action.class);
+	private final Ring drains = new Ring();
+
+	public TaskDurationStats() {
+		for (Action action : Action.values()) {
+			this.durations.put(action, new Ring());
+		}
+	}
+
+	/**
+	 * 记录一次成功任务的耗时
+	 * @param action
+	 * @param durationMillis
+	 */
+	public void recordDuration(Action action, long durationMillis) {
+		if (action != null && durationMillis > 0) {
+			this.durations.get(action).add(durationMillis);
+		}
+	}
+
+	/**
+	 * 记录一次出队
+	 */
+	public void recordDrain() {
+		this.drains.add(System.currentTimeMillis());
+	}
+
+	/**
+	 * 任务耗时的分位数
+	 * @param action
+	 * @param percentile 0-1
+	 * @return 毫秒，没有样本时返回默认值
+	 */
+	public long percentile(Action action, double percentile) {
+		long defaultDuration = DEFAULT_DURATIONS.getOrDefault(action, TimeUnit.SECONDS.toMillis(60));
+		if (action == null) {
+			return defaultDuration;
+		}
+		long[] samples = this.durations.get(action).snapshot();
+		if (samples.length == 0) {
+			return defaultDuration;
+		}
+		Arrays.sort(samples);
+		int index = (int) Math.ceil(percentile * samples.length) - 1;
+		return samples[Math.min(Math.max(index, 0), samples.length - 1)];
+	}
+
+	/**
+	 * 任务耗时的估算值(中位数)
+	 * @param action
+	 * @return 毫秒
+	 */
+	public long estimate(Action action) {
+		return percentile(action, 0.5);
+	}
+
+	/**
+	 * 最近的队列消化速度
+	 * @return 每秒出队的任务数，样本不足时返回0
+	 */
+	public double drainRate() {
+		long now = System.currentTimeMillis();
+		long[] samples = this.drains.snapshot();
+		long oldest = Long.MAX_VALUE;
+		int count = 0;
+		for (long time : samples) {
+			if (now - time <= DRAIN_WINDOW) {
+				oldest = Math.min(oldest, time);
+				count++;
+			}
+		}
+		if (count < 2 || now <= oldest) {
+			return 0;
+		}
+		return count * 1000d / (now - oldest);
+	}
+
+	/**
+	 * 固定大小的环形样本缓冲区
+	 */
+	private static class Ring {
+		private final long[] values = new long[SAMPLE_SIZE];
+		private int next;
+		private int size;
+
+		synchronized void add(long value) {
+			this.values[this.next] = value;
+			this.next = (this.next + 1) % this.values.length;
+			this.size = Math.min(this.size + 1, this.values.length);
+		}
+
+		synchronized long[] snapshot() {
+			return Arrays.copyOf(this.values, this.size);
+		}
+	}
+}
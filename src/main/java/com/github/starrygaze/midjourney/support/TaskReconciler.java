@@ -0,0 +1,148 @@
+package com.github.starrygaze.midjourney.support;
+
+import com.github.starrygaze.midjourney.ProxyProperties;
+import com.github.starrygaze.midjourney.entity.Task;
+import com.github.starrygaze.midjourney.enums.TaskStatus;
+import com.github.starrygaze.midjourney.service.task.TaskService;
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.channel.concrete.TextChannel;
+import net.dv8tion.jda.api.events.session.ReadyEvent;
+import net.dv8tion.jda.api.events.session.SessionRecreateEvent;
+import net.dv8tion.jda.api.events.session.SessionResumeEvent;
+import net.dv8tion.jda.api.hooks.ListenerAdapter;
+import net.dv8tion.jda.api.sharding.ShardManager;
+import net.dv8tion.jda.api.utils.TimeUtil;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * TaskReconciler 补偿错过的discord消息事件：网关断线重连后，或者执行中的任务超过 reconcile-after 没有任何进度时，
+ * 从频道中最早的需要补偿的任务开始之后按页取回消息，交给消息监听器按历史消息重新处理，每次补偿最多取 MAX_HISTORY_PAGES 页。
+ * 消息处理器按prompt中的[任务ID]、引用的原消息id匹配执行中的任务，已经出图的任务在几秒内完成，而不是等到超时失败。
+ */
+@Slf4j
+@Component
+public class TaskReconciler extends ListenerAdapter {
+	private static final long SWEEP_INTERVAL_MILLIS = 15_000;
+	/**
+	 * 一次最多取回的消息数，discord单次请求的上限
+	 */
+	private static final int HISTORY_LIMIT = 100;
+	/**
+	 * 一次补偿最多取回的页数，频道很活跃时限制REST请求数
+	 */
+	private static final int MAX_HISTORY_PAGES = 10;
+	/**
+	 * 任务开始时间往前多取的时间，避免本地和discord的时钟偏差漏掉消息
+	 */
+	private static final long CLOCK_SKEW_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+	private final TaskService taskService;
+	private final DiscordMessageListener messageListener;
+	private final ProxyProperties.TaskQueueConfig queueConfig;
+	private volatile ShardManager shardManager;
+
+	public TaskReconciler(TaskService taskService, DiscordMessageListener messageListener, ProxyProperties properties) {
+		this.taskService = taskService;
+		this.messageListener = messageListener;
+		this.queueConfig = properties.getQueue();
+	}
+
+	@Override
+	public void onReady(ReadyEvent event) {
+		this.shardManager = event.getJDA().getShardManager();
+	}
+
+	@Override
+	public void onSessionResume(SessionResumeEvent event) {
+		log.info("discord gateway resumed, reconcile running tasks");
+		reconcile(0);
+	}
+
+	@Override
+	public void onSessionRecreate(SessionRecreateEvent event) {
+		log.info("discord gateway reconnected, reconcile running tasks");
+		reconcile(0);
+	}
+
+	/**
+	 * 定时检查执行中的任务，有任务超过 reconcile-after 没有收到进度或状态变更时补偿它所在的频道.
+	 */
+	@Scheduled(fixedDelay = SWEEP_INTERVAL_MILLIS)
+	public void reconcileStalled() {
+		reconcile(this.queueConfig.getReconcileAfter().toMillis());
+	}
+
+	/**
+	 * 按频道补偿执行中的任务.
+	 * @param stalledMillis 只补偿超过这个时间没有进度的任务，0表示补偿所有执行中的任务
+	 */
+	private void reconcile(long stalledMillis) {
+		ShardManager manager = this.shardManager;
+		if (manager == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		Map<String, List<Task>> tasksByChannel = this.taskService.findTask(new TaskCondition()
+						.setStatusSet(Set.of(TaskStatus.SUBMITTED, TaskStatus.IN_PROGRESS)))
+				.filter(task -> task.getChannelId() != null && task.getStartTime() != null)
+				.collect(Collectors.groupingBy(Task::getChannelId));
+		tasksByChannel.forEach((channelId, tasks) -> {
+			List<Task> stalled = tasks.stream()
+					.filter(task -> stalledMillis == 0 || now - lastActiveTime(task) >= stalledMillis)
+					.toList();
+			if (stalled.isEmpty()) {
+				return;
+			}
+			TextChannel channel = manager.getTextChannelById(channelId);
+			if (channel == null) {
+				log.warn("reconcile skipped, channel not visible to bot: {}", channelId);
+				return;
+			}
+			long earliestStart = stalled.stream().mapToLong(Task::getStartTime).min().orElse(now);
+			log.debug("reconcile channel: {}, stalled tasks: {}", channelId, stalled.size());
+			replayHistory(channel, TimeUtil.getDiscordTimestamp(earliestStart - CLOCK_SKEW_MILLIS), 1);
+		});
+	}
+
+	/**
+	 * 任务最近一次有进度的时间，还没有收到任何变更时为开始时间.
+	 */
+	private static long lastActiveTime(Task task) {
+		Long lastUpdateTime = task.getLastUpdateTime();
+		return lastUpdateTime == null ? task.getStartTime() : Math.max(lastUpdateTime, task.getStartTime());
+	}
+
+	/**
+	 * 取回锚点之后的一页消息，按时间顺序重新处理；取满一页时以这一页最新的消息为锚点继续取下一页.
+	 * @param channel
+	 * @param afterId 锚点消息id(或由时间换算的id)
+	 * @param page 当前页数，从1开始
+	 */
+	private void replayHistory(TextChannel channel, long afterId, int page) {
+		channel.getHistoryAfter(afterId, HISTORY_LIMIT).queue(history -> {
+			List<Message> messages = new ArrayList<>(history.getRetrievedHistory());
+			messages.sort(Comparator.comparingLong(Message::getIdLong));
+			log.debug("reconcile channel: {}, page: {}, messages: {}", channel.getId(), page, messages.size());
+			messages.forEach(this.messageListener::replay);
+			if (messages.size() < HISTORY_LIMIT) {
+				return;
+			}
+			if (page >= MAX_HISTORY_PAGES) {
+				log.warn("reconcile stopped after {} pages, channel: {}", page, channel.getId());
+				return;
+			}
+			replayHistory(channel, messages.get(messages.size() - 1).getIdLong(), page + 1);
+		}, e -> log.warn("reconcile failed, channel: {}, {}", channel.getId(), e.getMessage()));
+	}
+
+}
@@ -0,0 +1,188 @@
+package com.github.starrygaze.midjourney.support;
+
+import cn.hutool.core.text.CharSequenceUtil;
+import com.github.starrygaze.midjourney.entity.Task;
+import com.github.starrygaze.midjourney.enums.TaskStatus;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * TaskRegistry 是执行中任务的并发登记表，按 id、key、relatedTaskId、messageId 和状态建立哈希索引。
+ *
+ * 写操作（登记、移除、重建索引）串行执行，读操作无锁，遍历的是 ConcurrentHashMap 的弱一致视图，不会抛出 ConcurrentModificationException。
+ * 任务字段由消息处理器直接修改，索引在任务触发状态变更回调时通过 reindex 更新，因此查询时总会再用 TaskCondition 校验一次候选任务。
+ */
+public class TaskRegistry {
+
+	/**
+	 * id 索引，同时也是全部执行中任务的集合
+	 */
+	private final Map<String, Task> idIndex = new ConcurrentHashMap<>();
+
+	/**
+	 * 每个任务最近一次建立索引时的字段值，用于重建索引时从旧的桶中移除
+	 */
+	private final Map<String, IndexEntry> indexEntries = new ConcurrentHashMap<>();
+
+	/**
+	 * 各字段的索引：字段值 -> (任务id -> 任务)。Task 的 hashCode 随字段变化，所以桶内按任务id存放
+	 */
+	private final Map<String, Map<String, Task>> keyIndex = new ConcurrentHashMap<>();
+	private final Map<String, Map<String, Task>> relatedTaskIdIndex = new ConcurrentHashMap<>();
+	private final Map<String, Map<String, Task>> messageIdIndex = new ConcurrentHashMap<>();
+	private final Map<TaskStatus, Map<String, Task>> statusIndex;
+
+	public TaskRegistry() {
+		Map<TaskStatus, Map<String, Task>> map = new EnumMap<>(TaskStatus.class);
+		for (TaskStatus status : TaskStatus.values()) {
+			map.put(status, new ConcurrentHashMap<>());
+		}
+		this.statusIndex = Collections.unmodifiableMap(map);
+	}
+
+	/**
+	 * 登记一个执行中的任务
+	 * @param task
+	 */
+	public synchronized void add(Task task) {
+		this.idIndex.put(task.getId(), task);
+		reindex(task);
+	}
+
+	/**
+	 * 移除任务，只有登记的是同一个任务对象时才会移除
+	 * @param task
+	 * @return 是否移除成功
+	 */
+	public synchronized boolean remove(Task task) {
+		if (!this.idIndex.remove(task.getId(), task)) {
+			return false;
+		}
+		IndexEntry entry = this.indexEntries.remove(task.getId());
+		if (entry != null) {
+			unindex(entry, task.getId());
+		}
+		return true;
+	}
+
+	/**
+	 * 按任务当前的字段值重建索引
+	 * @param task
+	 * @return 状态是否与上次建立索引时不同
+	 */
+	public synchronized boolean reindex(Task task) {
+		if (this.idIndex.get(task.getId()) != task) {
+			return false;
+		}
+		IndexEntry current = new IndexEntry(task.getKey(), task.getRelatedTaskId(), task.getMessageId(), task.getStatus());
+		IndexEntry previous = this.indexEntries.put(task.getId(), current);
+		if (current.equals(previous)) {
+			return false;
+		}
+		if (previous != null) {
+			unindex(previous, task.getId());
+		}
+		index(current, task);
+		return previous == null || previous.status() != current.status();
+	}
+
+	public Task get(String id) {
+		return this.idIndex.get(id);
+	}
+
+	public boolean contains(Task task) {
+		return this.idIndex.get(task.getId()) == task;
+	}
+
+	public int size() {
+		return this.idIndex.size();
+	}
+
+	/**
+	 * 查询满足条件的任务：先在条件涉及的索引中选出候选集最小的一个，再用条件逐个校验候选任务
+	 * @param condition
+	 * @return
+	 */
+	public Stream<Task> find(TaskCondition condition) {
+		return plan(condition).filter(condition);
+	}
+
+	private Stream<Task> plan(TaskCondition condition) {
+		Collection<Task> best = null;
+		best = narrower(best, bucket(this.keyIndex, condition.getKey()));
+		best = narrower(best, bucket(this.relatedTaskIdIndex, condition.getRelatedTaskId()));
+		best = narrower(best, bucket(this.messageIdIndex, condition.getMessageId()));
+		Set<TaskStatus> statusSet = condition.getStatusSet();
+		if (statusSet != null && !statusSet.isEmpty()) {
+			int statusSize = statusSet.stream().mapToInt(s -> this.statusIndex.get(s).size()).sum();
+			if (best == null || statusSize < best.size()) {
+				return statusSet.stream().flatMap(s -> this.statusIndex.get(s).values().stream());
+			}
+		}
+		return best == null ? this.idIndex.values().stream() : best.stream();
+	}
+
+	private Collection<Task> narrower(Collection<Task> best, Collection<Task> candidate) {
+		if (candidate == null) {
+			return best;
+		}
+		return best == null || candidate.size() < best.size() ? candidate : best;
+	}
+
+	private Collection<Task> bucket(Map<String, Map<String, Task>> index, String value) {
+		if (CharSequenceUtil.isBlank(value)) {
+			return null;
+		}
+		Map<String, Task> bucket = index.get(value);
+		return bucket == null ? Collections.emptyList() : bucket.values();
+	}
+
+	private void index(IndexEntry entry, Task task) {
+		put(this.keyIndex, entry.key(), task);
+		put(this.relatedTaskIdIndex, entry.relatedTaskId(), task);
+		put(this.messageIdIndex, entry.messageId(), task);
+		if (entry.status() != null) {
+			this.statusIndex.get(entry.status()).put(task.getId(), task);
+		}
+	}
+
+	private void unindex(IndexEntry entry, String id) {
+		remove(this.keyIndex, entry.key(), id);
+		remove(this.relatedTaskIdIndex, entry.relatedTaskId(), id);
+		remove(this.messageIdIndex, entry.messageId(), id);
+		if (entry.status() != null) {
+			this.statusIndex.get(entry.status()).remove(id);
+		}
+	}
+
+	private void put(Map<String, Map<String, Task>> index, String value, Task task) {
+		if (value != null) {
+			index.computeIfAbsent(value, k -> new ConcurrentHashMap<>()).put(task.getId(), task);
+		}
+	}
+
+	private void remove(Map<String, Map<String, Task>> index, String value, String id) {
+		if (value == null) {
+			return;
+		}
+		Map<String, Task> bucket = index.get(value);
+		if (bucket != null) {
+			bucket.remove(id);
+			if (bucket.isEmpty()) {
+				index.remove(value, bucket);
+			}
+		}
+	}
+
+	/**
+	 * 建立索引时的字段值快照
+	 */
+	private record IndexEntry(String key, String relatedTaskId, String messageId, TaskStatus status) {
+	}
+}
@@ -19,7 +19,7 @@ import java.util.regex.Pattern;
 @Component
 public class BannedPromptHelper {
 	private static final String BANNED_WORDS_FILE_PATH = "/home/spring/config/banned-words.txt";
-	private final List<String> bannedWords;
+	private final Pattern bannedPattern;
 
 	/**
 	 * BannedPromptHelper 类的主要作用是提供一个方法用于检测输入是否包含被禁止的词汇。
@@ -33,18 +33,22 @@ public class BannedPromptHelper {
 			var resource = BannedPromptHelper.class.getResource("/banned-words.txt");
 			lines = FileUtil.readLines(resource, StandardCharsets.UTF_8);
 		}
-		this.bannedWords = lines.stream().filter(CharSequenceUtil::isNotBlank).toList();
+		List<String> bannedWords = lines.stream().filter(CharSequenceUtil::isNotBlank).map(String::trim).toList();
+		// 所有敏感词合并成一个正则，启动时编译一次，避免每次检测都逐个编译
+		this.bannedPattern = bannedWords.isEmpty() ? null : Pattern.compile("\\b(?:" + String.join("|", bannedWords) + ")\\b");
 	}
 
 	/**
-	 * 这个类有一个方法 isBanned，它接收一个字符串 promptEn 作为输入，将这个字符串转换为小写并检查它是否包含 bannedWords 列表中的任何一个词汇。
-	 * 这个检查是通过创建正则表达式并匹配输入字符串完成的。如果输入字符串包含被禁止的词汇，那么这个方法将返回 true，否则返回 false。
+	 * 这个类有一个方法 isBanned，它接收一个字符串 promptEn 作为输入，将这个字符串转换为小写并检查它是否包含任何一个被禁止的词汇。
+	 * 这个检查是通过预先编译好的正则表达式匹配输入字符串完成的。如果输入字符串包含被禁止的词汇，那么这个方法将返回 true，否则返回 false。
 	 * @param promptEn
 	 * @return
 	 */
 	public boolean isBanned(String promptEn) {
-		String finalPromptEn = promptEn.toLowerCase(Locale.ENGLISH);
-		return this.bannedWords.stream().anyMatch(bannedWord -> Pattern.compile("\\b" + bannedWord + "\\b").matcher(finalPromptEn).find());
+		if (this.bannedPattern == null) {
+			return false;
+		}
+		return this.bannedPattern.matcher(promptEn.toLowerCase(Locale.ENGLISH)).find();
 	}
 
 }
@@ -30,7 +30,7 @@ public class UVMessageHandler implements MessageHandler {
 
 	/**
 	 * onMessageReceived(Message message): 当接收到新的消息时，该方法被调用。首先，它尝试将原始消息内容匹配为MessageData。如果匹配成功，则创建一个新的TaskCondition，并使用它来查找与这个消息相关的任务。
-	 * 如果找到符合条件的任务，它就更新任务的messageId，完成任务，并唤醒该任务。
+	 * 如果找到符合条件的任务，它就更新任务的messageId，完成任务，并通知任务状态变更。
 	 * @param message
 	 */
 	@Override
@@ -48,42 +48,59 @@ public class UVMessageHandler implements MessageHandler {
 		if (task == null) {
 			return;
 		}
-		task.setMessageId(message.getId());
-		finishTask(task, message);
-		task.awake();
+		if (finishTask(task, message)) {
+			task.notifyChange();
+		}
 	}
 
 	/**
-	 * onMessageUpdate(Message message): 当消息更新时，该方法被调用。它首先尝试将更新的消息内容匹配为MessageData。如果匹配成功，它会创建一个新的TaskCondition，并使用它来查找与这个消息相关的任务。
-	 * 如果找到符合条件的任务，它将更新任务的状态为IN_PROGRESS，并唤醒该任务。
+	 * onMessageUpdate(Message message): 当消息更新时，该方法被调用。它首先尝试将更新的消息内容匹配为MessageData。如果匹配成功，先按消息id查找执行中的任务，
+	 * 找不到时按关联任务ID查找刚提交的放大、变换任务，并把消息id记到任务上，之后的进度更新直接按消息id匹配。
+	 * 找到任务后，将任务状态更新为IN_PROGRESS，记录消息中的进度百分比和预览图，并通知任务状态变更；任务在此期间已经结束时忽略这次更新。
 	 * @param message
 	 */
 	@Override
 	public void onMessageUpdate(Message message) {
-		String content = message.getContentRaw();
-		MessageData data = ConvertUtils.matchImagineContent(content);
-		if (data == null) {
-			data = ConvertUtils.matchUVContent(content);
-		}
+		MessageData data = ConvertUtils.parseContent(message.getContentRaw());
 		if (data == null) {
 			return;
 		}
-		String relatedTaskId = ConvertUtils.findTaskIdByFinalPrompt(data.getPrompt());
-		if (CharSequenceUtil.isBlank(relatedTaskId)) {
-			return;
-		}
-		TaskCondition condition = new TaskCondition()
-				.setActionSet(Set.of(Action.UPSCALE, Action.VARIATION))
-				.setRelatedTaskId(relatedTaskId)
-				.setStatusSet(Set.of(TaskStatus.SUBMITTED));
-		Task task = this.taskQueueService.findTask(condition)
-				.max(Comparator.comparing(Task::getSubmitTime))
+		Task task = this.taskQueueService.findTask(new TaskCondition()
+						.setMessageId(message.getId())
+						.setStatusSet(Set.of(TaskStatus.SUBMITTED, TaskStatus.IN_PROGRESS)))
+				.findFirst()
 				.orElse(null);
+		boolean matchedByMessageId = task != null;
 		if (task == null) {
-			return;
+			String relatedTaskId = data.getTaskId();
+			if (CharSequenceUtil.isBlank(relatedTaskId)) {
+				return;
+			}
+			TaskCondition condition = new TaskCondition()
+					.setActionSet(Set.of(Action.UPSCALE, Action.VARIATION))
+					.setRelatedTaskId(relatedTaskId)
+					.setStatusSet(Set.of(TaskStatus.SUBMITTED));
+			task = this.taskQueueService.findTask(condition)
+					.max(Comparator.comparing(Task::getSubmitTime))
+					.orElse(null);
+			if (task == null) {
+				return;
+			}
+		}
+		boolean changed = task.transition(TaskStatus.IN_PROGRESS, t -> {
+			if (!matchedByMessageId) {
+				t.setMessageId(message.getId());
+			}
+			if (data.getProgress() != null) {
+				t.setProgress(data.getProgress());
+			}
+			if (!message.getAttachments().isEmpty()) {
+				t.setPreviewImageUrl(message.getAttachments().get(0).getUrl());
+			}
+		});
+		if (changed) {
+			task.notifyChange();
 		}
-		task.setStatus(TaskStatus.IN_PROGRESS);
-		task.awake();
 	}
 
 }
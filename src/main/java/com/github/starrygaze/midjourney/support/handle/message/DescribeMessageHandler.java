@@ -2,15 +2,19 @@ package com.github.starrygaze.midjourney.support.handle.message;
 
 
 import cn.hutool.core.text.CharSequenceUtil;
+import com.github.starrygaze.midjourney.enums.Action;
 import com.github.starrygaze.midjourney.enums.TaskStatus;
 import com.github.starrygaze.midjourney.service.task.TaskService;
 import com.github.starrygaze.midjourney.entity.Task;
+import com.github.starrygaze.midjourney.support.TaskCondition;
 import lombok.RequiredArgsConstructor;
 import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.MessageEmbed;
 import org.springframework.stereotype.Component;
 
+import java.util.Comparator;
 import java.util.List;
+import java.util.Set;
 
 @Component
 @RequiredArgsConstructor
@@ -30,18 +34,28 @@ public class DescribeMessageHandler implements MessageHandler {
 		String prompt = embeds.get(0).getDescription();
 		String imageUrl = embeds.get(0).getImage().getUrl();
 		int hashStartIndex = imageUrl.lastIndexOf("/");
-		String taskId = CharSequenceUtil.subBefore(imageUrl.substring(hashStartIndex + 1), ".", true);
-		Task task = this.taskQueueService.getTask(taskId);
+		// 结果图片的文件名即提交时的附件名，复用已上传的附件时可能有多个任务使用同一个文件名，按提交顺序匹配
+		String fileName = CharSequenceUtil.subBefore(imageUrl.substring(hashStartIndex + 1), "?", false);
+		TaskCondition condition = new TaskCondition()
+				.setKey(fileName)
+				.setActionSet(Set.of(Action.DESCRIBE))
+				.setStatusSet(Set.of(TaskStatus.SUBMITTED, TaskStatus.IN_PROGRESS));
+		Task task = this.taskQueueService.findTask(condition)
+				.min(Comparator.comparing(Task::getSubmitTime))
+				.orElse(null);
 		if (task == null) {
 			return;
 		}
-		task.setMessageId(message.getId());
-		task.setPrompt(prompt);
-		task.setPromptEn(prompt);
-		task.setImageUrl(imageUrl);
-		task.setFinishTime(System.currentTimeMillis());
-		task.setStatus(TaskStatus.SUCCESS);
-		task.awake();
+		boolean changed = task.transition(TaskStatus.SUCCESS, t -> {
+			t.setMessageId(message.getId());
+			t.setPrompt(prompt);
+			t.setPromptEn(prompt);
+			t.setImageUrl(imageUrl);
+			t.setFinishTime(System.currentTimeMillis());
+		});
+		if (changed) {
+			task.notifyChange();
+		}
 	}
 
 }
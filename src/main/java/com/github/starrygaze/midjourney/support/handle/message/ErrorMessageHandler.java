@@ -0,0 +1,135 @@
+package com.github.starrygaze.midjourney.support.handle.message;
+
+import cn.hutool.core.text.CharSequenceUtil;
+import com.github.starrygaze.midjourney.entity.Task;
+import com.github.starrygaze.midjourney.enums.Action;
+import com.github.starrygaze.midjourney.enums.TaskStatus;
+import com.github.starrygaze.midjourney.service.task.TaskService;
+import com.github.starrygaze.midjourney.support.TaskCondition;
+import com.github.starrygaze.midjourney.util.ConvertUtils;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import net.dv8tion.jda.api.entities.Message;
+import net.dv8tion.jda.api.entities.MessageEmbed;
+import net.dv8tion.jda.api.entities.MessageReference;
+import org.springframework.stereotype.Component;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * ErrorMessageHandler 处理midjourney拒绝任务时回复的错误提示(参数错误、违禁词、队列已满、订阅失效等)，找到对应的任务并立即置为失败，
+ * 失败原因使用提示的标题和内容，不再占着并发许可等到超时。
+ *
+ * 错误提示按以下顺序对应到任务：提示所在的消息就是任务的进度消息(出图过程中被取消)；提示中带有prompt里的[任务ID]；
+ * 提示引用了放大、变换的原消息；提示是某个交互的回复，且该账号只有一个还没有收到任何消息的同类任务。都匹配不到时忽略。
+ * 只对所有人可见的提示能收到，仅提交者可见(ephemeral)的提示机器人收不到，这类任务仍由超时和补偿处理。
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ErrorMessageHandler implements MessageHandler {
+	/**
+	 * midjourney错误提示的标题
+	 */
+	private static final List<String> ERROR_TITLES = List.of("Invalid parameter", "Invalid link", "Invalid image prompt",
+			"Banned prompt", "Blocked", "Request cancelled due to image filters", "Action needed to continue",
+			"Subscription required", "Pending mod message", "Job action restricted", "Queue full",
+			"Sorry! Could not complete the job", "Failed to process your command", "Slow down");
+	private static final Set<TaskStatus> RUNNING_STATUS = Set.of(TaskStatus.SUBMITTED, TaskStatus.IN_PROGRESS);
+
+	private final TaskService taskQueueService;
+
+	/**
+	 * 判断消息是否是midjourney的错误提示.
+	 * @param message
+	 * @return
+	 */
+	public boolean isErrorMessage(Message message) {
+		if (message.getEmbeds().isEmpty()) {
+			return false;
+		}
+		String title = message.getEmbeds().get(0).getTitle();
+		return title != null && ERROR_TITLES.stream().anyMatch(title::startsWith);
+	}
+
+	@Override
+	public void onMessageReceived(Message message) {
+		failTask(message);
+	}
+
+	@Override
+	public void onMessageUpdate(Message message) {
+		failTask(message);
+	}
+
+	private void failTask(Message message) {
+		MessageEmbed embed = message.getEmbeds().get(0);
+		Task task = findTask(message, embed);
+		if (task == null) {
+			log.debug("midjourney error message not matched, title: {}", embed.getTitle());
+			return;
+		}
+		String reason = CharSequenceUtil.isBlank(embed.getDescription()) ? embed.getTitle()
+				: embed.getTitle() + ": " + embed.getDescription();
+		log.debug("task rejected by midjourney, id: {}, reason: {}", task.getId(), reason);
+		boolean changed = task.transition(TaskStatus.FAILURE, t -> {
+			t.setFinishTime(System.currentTimeMillis());
+			t.setFailReason(CharSequenceUtil.sub(reason, 0, 500));
+		});
+		if (changed) {
+			task.notifyChange();
+		}
+	}
+
+	private Task findTask(Message message, MessageEmbed embed) {
+		Optional<Task> byMessageId = this.taskQueueService.findTask(new TaskCondition()
+				.setMessageId(message.getId())
+				.setStatusSet(RUNNING_STATUS)).findFirst();
+		if (byMessageId.isPresent()) {
+			return byMessageId.get();
+		}
+		String footer = embed.getFooter() == null ? null : embed.getFooter().getText();
+		Task byTaskId = Stream.of(message.getContentRaw(), embed.getDescription(), footer)
+				.filter(CharSequenceUtil::isNotBlank)
+				.map(ConvertUtils::findTaskIdByFinalPrompt)
+				.filter(CharSequenceUtil::isNotBlank)
+				.map(this.taskQueueService::getTask)
+				.filter(task -> task != null && RUNNING_STATUS.contains(task.getStatus()))
+				.findFirst()
+				.orElse(null);
+		if (byTaskId != null) {
+			return byTaskId;
+		}
+		MessageReference reference = message.getMessageReference();
+		if (reference != null) {
+			return this.taskQueueService.findTask(new TaskCondition()
+							.setActionSet(Set.of(Action.UPSCALE, Action.VARIATION))
+							.setStatusSet(Set.of(TaskStatus.SUBMITTED)))
+					.filter(task -> task.getKey() != null && task.getKey().startsWith(reference.getMessageId() + "-"))
+					.max(Comparator.comparing(Task::getSubmitTime))
+					.orElse(null);
+		}
+		if (message.getInteraction() == null) {
+			return null;
+		}
+		Action action;
+		try {
+			action = Action.valueOf(message.getInteraction().getName().toUpperCase());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		String channelId = message.getChannel().getId();
+		List<Task> candidates = this.taskQueueService.findTask(new TaskCondition()
+						.setActionSet(Set.of(action))
+						.setStatusSet(Set.of(TaskStatus.SUBMITTED)))
+				.filter(task -> channelId.equals(task.getChannelId()) && task.getMessageId() == null)
+				.collect(Collectors.toList());
+		return candidates.size() == 1 ? candidates.get(0) : null;
+	}
+
+}
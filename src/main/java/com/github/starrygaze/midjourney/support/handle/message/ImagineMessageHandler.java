@@ -22,7 +22,7 @@ public class ImagineMessageHandler implements MessageHandler {
 		if (messageData == null) {
 			return;
 		}
-		String taskId = ConvertUtils.findTaskIdByFinalPrompt(messageData.getPrompt());
+		String taskId = messageData.getTaskId();
 		if (CharSequenceUtil.isBlank(taskId)) {
 			return;
 		}
@@ -30,13 +30,15 @@ public class ImagineMessageHandler implements MessageHandler {
 		if (task == null) {
 			return;
 		}
-		task.setMessageId(message.getId());
+		boolean changed;
 		if ("Waiting to start".equals(messageData.getStatus())) {
-			task.setStatus(TaskStatus.IN_PROGRESS);
+			changed = task.transition(TaskStatus.IN_PROGRESS, t -> t.setMessageId(message.getId()));
 		} else {
-			finishTask(task, message);
+			changed = finishTask(task, message);
+		}
+		if (changed) {
+			task.notifyChange();
 		}
-		task.awake();
 	}
 
 	@Override
@@ -28,20 +28,25 @@ public interface MessageHandler {
 	 * 然后从 URL 中提取出哈希值，这个哈希值保存在 URL 最后的 "_" 和 "." 之间，提取出来的哈希值被设置为 Task 对象的消息哈希值。
 	 *
 	 * 如果 Message 对象不包含任何附件，finishTask 方法将 Task 对象的状态设置为 TaskStatus.FAILURE。
+	 *
+	 * 任务已经结束(比如已超时)时不做任何修改，返回false，调用方不再通知变更。
 	 * @param task
 	 * @param message
+	 * @return 是否完成了任务
 	 */
-	default void finishTask(Task task, Message message) {
-		task.setFinishTime(System.currentTimeMillis());
-		if (!message.getAttachments().isEmpty()) {
-			task.setStatus(TaskStatus.SUCCESS);
-			String imageUrl = message.getAttachments().get(0).getUrl();
-			task.setImageUrl(imageUrl);
-			int hashStartIndex = imageUrl.lastIndexOf("_");
-			task.setMessageHash(CharSequenceUtil.subBefore(imageUrl.substring(hashStartIndex + 1), ".", true));
-		} else {
-			task.setStatus(TaskStatus.FAILURE);
+	default boolean finishTask(Task task, Message message) {
+		if (message.getAttachments().isEmpty()) {
+			return task.transition(TaskStatus.FAILURE, t -> t.setFinishTime(System.currentTimeMillis()));
 		}
+		String imageUrl = message.getAttachments().get(0).getUrl();
+		return task.transition(TaskStatus.SUCCESS, t -> {
+			t.setFinishTime(System.currentTimeMillis());
+			t.setMessageId(message.getId());
+			t.setProgress(100);
+			t.setImageUrl(imageUrl);
+			int hashStartIndex = imageUrl.lastIndexOf("_");
+			t.setMessageHash(CharSequenceUtil.subBefore(imageUrl.substring(hashStartIndex + 1), ".", true));
+		});
 	}
 
 }
@@ -7,14 +7,14 @@ import com.github.starrygaze.midjourney.enums.Action;
 import lombok.experimental.UtilityClass;
 
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 @UtilityClass
 public class ConvertUtils {
-	private static final String MJ_I_CONTENT_REGEX = "\\*\\*(.*?)\\*\\* - <@(\\d+)> \\((.*?)\\)";
-	private static final String MJ_UV_CONTENT_REGEX = "\\*\\*(.*?)\\*\\* - (.*?) by <@(\\d+)> \\((.*?)\\)";
-	private static final String MJ_U_CONTENT_REGEX = "\\*\\*(.*?)\\*\\* - Image #(\\d) <@(\\d+)>";
+	private static final String PROMPT_START = "**";
+	private static final String PROMPT_END = "** - ";
+	private static final String MENTION_START = "<@";
+	private static final String U_ACTION = "Image #";
+	private static final String UV_MENTION_START = " by <@";
 
 	/**
 	 * 这个方法通过接收一个字符串finalPrompt，然后在其中找出两个"["和"]"之间的字符串，作为任务ID返回。
@@ -26,67 +26,132 @@ public class ConvertUtils {
 	}
 
 	/**
-	 *  这个方法用于匹配和解析某种格式的字符串，具体来说是看这个字符串是否符合MJ_I_CONTENT_REGEX这个正则表达式。
-	 *  如果匹配成功，它会创建一个MessageData对象，并从字符串中提取出一些信息（如提示，状态）并设置到这个对象中，然后返回这个对象。
-	 *  如果不匹配，就返回null。
+	 * 匹配imagine消息，格式为 **prompt** - <@id> (status)，不是imagine消息时返回null.
 	 * @param content
 	 * @return
 	 */
 	public static MessageData matchImagineContent(String content) {
-		Pattern pattern = Pattern.compile(MJ_I_CONTENT_REGEX);
-		Matcher matcher = pattern.matcher(content);
-		if (!matcher.find()) {
-			return null;
-		}
-		MessageData data = new MessageData();
-		data.setAction(Action.IMAGINE);
-		data.setPrompt(matcher.group(1));
-		data.setStatus(matcher.group(3));
-		return data;
+		MessageData data = parseContent(content);
+		return data != null && data.getAction() == Action.IMAGINE ? data : null;
 	}
 
 	/**
-	 * 这个方法用于匹配和解析另一种格式的字符串，具体来说是看这个字符串是否符合MJ_UV_CONTENT_REGEX这个正则表达式。
-	 * 如果匹配成功，它会创建一个MessageData对象，并从字符串中提取出一些信息（如提示，状态）并设置到这个对象中，然后返回这个对象。
-	 * 如果不匹配，就会尝试使用matchUContent(content)方法来处理这个字符串。
+	 * 匹配放大、变换消息，格式为 **prompt** - Variations by <@id> (status) 或 **prompt** - Image #1 <@id>，不是这两类消息时返回null.
 	 * @param content
 	 * @return
 	 */
 	public static MessageData matchUVContent(String content) {
-		Pattern pattern = Pattern.compile(MJ_UV_CONTENT_REGEX);
-		Matcher matcher = pattern.matcher(content);
-		if (!matcher.find()) {
-			return matchUContent(content);
-		}
-		MessageData data = new MessageData();
-		data.setPrompt(matcher.group(1));
-		String matchAction = matcher.group(2);
-		data.setAction(matchAction.startsWith("Variation") ? Action.VARIATION : Action.UPSCALE);
-		data.setStatus(matcher.group(4));
-		return data;
+		MessageData data = parseContent(content);
+		return data != null && data.getAction() != Action.IMAGINE ? data : null;
 	}
 
 	/**
-	 * 这是一个私有方法，它用于匹配和解析另一种格式的字符串，具体来说是看这个字符串是否符合MJ_U_CONTENT_REGEX这个正则表达式。
-	 * 如果匹配成功，它会创建一个MessageData对象，并从字符串中提取出一些信息（如提示，索引）并设置到这个对象中，然后返回这个对象。
-	 * 如果不匹配，就返回null。
+	 * parseContent(String content)：一次扫描解析midjourney的消息内容，识别消息类型并提取prompt、任务ID、状态、序号和进度，不是midjourney任务消息时返回null。
+	 * midjourney每个任务每秒会多次更新进度，这里用字符串定位代替正则，不为每次匹配创建Pattern和Matcher。支持的格式：
+	 * <ul>
+	 *     <li>imagine: **prompt** - &lt;@id&gt; (Waiting to start)，进度为 **prompt** - &lt;@id&gt; (31%) (fast)</li>
+	 *     <li>变换、放大: **prompt** - Variations by &lt;@id&gt; (fast)，**prompt** - Upscaled by &lt;@id&gt; (fast)</li>
+	 *     <li>放大单张: **prompt** - Image #1 &lt;@id&gt;，状态为complete</li>
+	 * </ul>
 	 * @param content
 	 * @return
 	 */
-	private static MessageData matchUContent(String content) {
-		Pattern pattern = Pattern.compile(MJ_U_CONTENT_REGEX);
-		Matcher matcher = pattern.matcher(content);
-		if (!matcher.find()) {
+	public static MessageData parseContent(String content) {
+		if (content == null) {
+			return null;
+		}
+		int promptStart = content.indexOf(PROMPT_START);
+		if (promptStart < 0) {
+			return null;
+		}
+		promptStart += PROMPT_START.length();
+		int promptEnd = content.indexOf(PROMPT_END, promptStart);
+		if (promptEnd < 0) {
 			return null;
 		}
+		int pos = promptEnd + PROMPT_END.length();
 		MessageData data = new MessageData();
-		data.setAction(Action.UPSCALE);
-		data.setPrompt(matcher.group(1));
-		data.setStatus("complete");
-		data.setIndex(Integer.parseInt(matcher.group(2)));
+		if (content.startsWith(MENTION_START, pos)) {
+			int statusStart = skipMention(content, pos + MENTION_START.length());
+			if (statusStart < 0 || !content.startsWith(" (", statusStart)) {
+				return null;
+			}
+			if (!parseStatus(content, statusStart + 2, data)) {
+				return null;
+			}
+			data.setAction(Action.IMAGINE);
+		} else if (content.startsWith(U_ACTION, pos)) {
+			int indexPos = pos + U_ACTION.length();
+			if (indexPos >= content.length() || !Character.isDigit(content.charAt(indexPos))
+					|| !content.startsWith(" <@", indexPos + 1) || skipMention(content, indexPos + 4) < 0) {
+				return null;
+			}
+			data.setAction(Action.UPSCALE);
+			data.setIndex(content.charAt(indexPos) - '0');
+			data.setStatus("complete");
+		} else {
+			int mentionStart = content.indexOf(UV_MENTION_START, pos);
+			if (mentionStart < 0) {
+				return null;
+			}
+			int statusStart = skipMention(content, mentionStart + UV_MENTION_START.length());
+			if (statusStart < 0 || !content.startsWith(" (", statusStart)) {
+				return null;
+			}
+			if (!parseStatus(content, statusStart + 2, data)) {
+				return null;
+			}
+			data.setAction(content.startsWith("Variation", pos) ? Action.VARIATION : Action.UPSCALE);
+		}
+		data.setPrompt(content.substring(promptStart, promptEnd));
+		int taskIdStart = content.indexOf('[', promptStart);
+		if (taskIdStart >= 0 && taskIdStart < promptEnd) {
+			int taskIdEnd = content.indexOf(']', taskIdStart + 1);
+			if (taskIdEnd >= 0 && taskIdEnd < promptEnd) {
+				data.setTaskId(content.substring(taskIdStart + 1, taskIdEnd));
+			}
+		}
 		return data;
 	}
 
+	/**
+	 * 跳过 &lt;@ 之后的用户id和结尾的 &gt;，返回 &gt; 之后的位置，格式不对时返回-1.
+	 */
+	private static int skipMention(String content, int pos) {
+		int end = pos;
+		while (end < content.length() && Character.isDigit(content.charAt(end))) {
+			end++;
+		}
+		if (end == pos || end >= content.length() || content.charAt(end) != '>') {
+			return -1;
+		}
+		return end + 1;
+	}
+
+	/**
+	 * 读取括号中的状态，状态是百分比时同时解析进度.
+	 */
+	private static boolean parseStatus(String content, int pos, MessageData data) {
+		int end = content.indexOf(')', pos);
+		if (end < 0) {
+			return false;
+		}
+		String status = content.substring(pos, end);
+		data.setStatus(status);
+		if (end - pos > 1 && end - pos <= 4 && content.charAt(end - 1) == '%') {
+			int progress = 0;
+			for (int i = pos; i < end - 1; i++) {
+				char c = content.charAt(i);
+				if (!Character.isDigit(c)) {
+					return true;
+				}
+				progress = progress * 10 + (c - '0');
+			}
+			data.setProgress(progress);
+		}
+		return true;
+	}
+
 	/**
 	 * 这个方法用于将一个字符串转换为一个UVData对象。这个方法会先将字符串按空格分割，然后根据分割后的字符串的具体内容来创建和设置UVData对象的属性。
 	 * 如果字符串的格式不符合预期（如长度不对，字符不对等），这个方法会返回null。
@@ -3,18 +3,31 @@ package spring.config;
 import com.github.starrygaze.midjourney.ProxyProperties;
 import com.github.starrygaze.midjourney.service.store.TaskStoreService;
 import com.github.starrygaze.midjourney.service.translate.TranslateService;
+import com.github.starrygaze.midjourney.service.store.impl.CompactTaskRedisSerializer;
 import com.github.starrygaze.midjourney.service.store.impl.InMemoryTaskStoreServiceImpl;
+import com.github.starrygaze.midjourney.service.store.impl.NearCacheTaskStoreServiceImpl;
 import com.github.starrygaze.midjourney.service.store.impl.RedisTaskStoreServiceImpl;
+import com.github.starrygaze.midjourney.service.store.impl.WriteBehindTaskStoreServiceImpl;
 import com.github.starrygaze.midjourney.service.translate.impl.BaiduTranslateServiceImpl;
 import com.github.starrygaze.midjourney.service.translate.impl.GPTTranslateServiceImpl;
 import com.github.starrygaze.midjourney.entity.Task;
+import com.github.starrygaze.midjourney.support.HashedTimingWheel;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import org.apache.logging.log4j.util.Strings;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.http.client.OkHttp3ClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
 
+import java.net.InetSocketAddress;
+import java.net.Proxy;
 import java.time.Duration;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 这是一个Spring的配置类，用于定义和管理Spring中的bean。Bean是Spring中的一个重要概念，可以被视为应用程序中的一个组件，如服务层的服务、数据访问层的存储服务、模型对象等。
@@ -32,10 +45,10 @@ public class BeanConfig {
      * @return
      */
     @Bean
-    TranslateService translateService(ProxyProperties properties) {
+    TranslateService translateService(ProxyProperties properties, RestTemplate restTemplate, OkHttpClient httpClient) {
         return switch (properties.getTranslateWay()) {
-            case BAIDU -> new BaiduTranslateServiceImpl(properties.getBaiduTranslate());
-            case GPT -> new GPTTranslateServiceImpl(properties.getOpenai());
+            case BAIDU -> new BaiduTranslateServiceImpl(properties.getBaiduTranslate(), restTemplate);
+            case GPT -> new GPTTranslateServiceImpl(properties.getOpenai(), httpClient);
             default -> prompt -> prompt;
         };
     }
@@ -43,7 +56,8 @@ public class BeanConfig {
     /**
      * 这个方法用来创建TaskStoreService的bean。它的实现依赖于ProxyProperties和RedisConnectionFactory。
      * 如果TaskStore.Type属性为IN_MEMORY，就使用InMemoryTaskStoreServiceImpl，
-     * 如果为REDIS，就使用RedisTaskStoreServiceImpl。
+     * 如果为REDIS，就使用RedisTaskStoreServiceImpl，前面依次加上本地缓存NearCacheTaskStoreServiceImpl(near-cache-size为0时不加)
+     * 和合并写入的WriteBehindTaskStoreServiceImpl(write-behind-delay为0时不加)。
      *
      * @param proxyProperties
      * @param redisConnectionFactory
@@ -53,24 +67,85 @@ public class BeanConfig {
     TaskStoreService taskStoreService(ProxyProperties proxyProperties, RedisConnectionFactory redisConnectionFactory) {
         ProxyProperties.TaskStore.Type type = proxyProperties.getTaskStore().getType();
         Duration timeout = proxyProperties.getTaskStore().getTimeout();
-        return switch (type) {
-            case IN_MEMORY -> new InMemoryTaskStoreServiceImpl(timeout);
-            case REDIS -> new RedisTaskStoreServiceImpl(timeout, taskRedisTemplate(redisConnectionFactory));
-        };
+        if (type == ProxyProperties.TaskStore.Type.IN_MEMORY) {
+            return new InMemoryTaskStoreServiceImpl(timeout);
+        }
+        ProxyProperties.TaskStore config = proxyProperties.getTaskStore();
+        RedisTemplate<String, Task> redisTemplate = taskRedisTemplate(proxyProperties, redisConnectionFactory);
+        TaskStoreService store = new RedisTaskStoreServiceImpl(timeout, redisTemplate);
+        if (config.getNearCacheSize() > 0) {
+            store = new NearCacheTaskStoreServiceImpl(store, redisTemplate, redisConnectionFactory, config.getNearCacheSize(),
+                    config.getNearCacheTtl(), config.getNearCacheFinishedTtl());
+        }
+        if (!config.getWriteBehindDelay().isZero()) {
+            store = new WriteBehindTaskStoreServiceImpl(store, config.getWriteBehindDelay());
+        }
+        return store;
+    }
+
+    /**
+     * 这个方法用来创建所有对外HTTP调用共用的OkHttpClient的bean。连接池按host复用keep-alive连接，对方支持时使用HTTP/2，
+     * 配置了代理时所有请求都经过代理，不再依赖全局的系统属性。
+     *
+     * @param properties
+     * @return
+     */
+    @Bean
+    OkHttpClient httpClient(ProxyProperties properties) {
+        ProxyProperties.HttpClientConfig config = properties.getHttp();
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequestsPerHost(config.getMaxRequestsPerHost());
+        OkHttpClient.Builder builder = new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(config.getMaxIdleConnections(), config.getKeepAlive().toMillis(), TimeUnit.MILLISECONDS))
+                .dispatcher(dispatcher)
+                .connectTimeout(config.getConnectTimeout())
+                .readTimeout(config.getReadTimeout())
+                .writeTimeout(config.getWriteTimeout());
+        ProxyProperties.ProxyConfig proxy = properties.getProxy();
+        if (Strings.isNotBlank(proxy.getHost())) {
+            builder.proxy(new Proxy(Proxy.Type.HTTP, new InetSocketAddress(proxy.getHost(), proxy.getPort())));
+        }
+        return builder.build();
+    }
+
+    /**
+     * 这个方法用来创建基于共用OkHttpClient的RestTemplate的bean，替代每次调用都新建的RestTemplate。
+     *
+     * @param httpClient
+     * @return
+     */
+    @Bean
+    RestTemplate restTemplate(OkHttpClient httpClient) {
+        return new RestTemplate(new OkHttp3ClientHttpRequestFactory(httpClient));
+    }
+
+    /**
+     * 这个方法用来创建任务定时器的bean，时间轮每100毫秒前进一格，用于任务超时等定时事件，应用关闭时停止。
+     *
+     * @return
+     */
+    @Bean(destroyMethod = "stop")
+    HashedTimingWheel taskTimingWheel() {
+        return new HashedTimingWheel("TaskTimer", 100, 512);
     }
 
     /**
      * 这个方法用来创建一个配置了连接工厂和序列化器的RedisTemplate的bean，这个RedisTemplate用于操作Redis中Task对象的数据。
+     * 任务默认使用紧凑二进制编码，配置为JDK时使用默认的JDK序列化。
      *
+     * @param proxyProperties
      * @param redisConnectionFactory
      * @return
      */
     @Bean
-    RedisTemplate<String, Task> taskRedisTemplate(RedisConnectionFactory redisConnectionFactory) {
+    RedisTemplate<String, Task> taskRedisTemplate(ProxyProperties proxyProperties, RedisConnectionFactory redisConnectionFactory) {
         RedisTemplate<String, Task> redisTemplate = new RedisTemplate<>();
         redisTemplate.setConnectionFactory(redisConnectionFactory);
         redisTemplate.setKeySerializer(new StringRedisSerializer());
         redisTemplate.setHashKeySerializer(new StringRedisSerializer());
+        if (proxyProperties.getTaskStore().getCodec() == ProxyProperties.TaskStore.Codec.COMPACT) {
+            redisTemplate.setValueSerializer(new CompactTaskRedisSerializer());
+        }
         return redisTemplate;
     }
 }